@@ -0,0 +1,64 @@
+#!/bin/sh
+#
+# Cold run latency of a single page conversion: plain JVM, JVM with the class
+# data sharing archive (ant cds-archive) and the native executable (ant
+# native-image). Variants that have not been built are skipped.
+#
+# usage: bench/startup-benchmark.sh [runs]
+
+RUNS=${1:-10}
+DIST=dist
+JAR=$DIST/Navis2OpenAnnotation.jar
+CDS=$DIST/Navis2OpenAnnotation.jsa
+NATIVE=$DIST/navis2oac
+INPUT=bench/training/page.txt
+OUTPUT=${TMPDIR:-/tmp}/navis2oac-startup-benchmark.rdf
+
+# prints the wall time in ms of one run of the given command, with its output
+# discarded; date +%s%N is GNU only, perl's Time::HiRes works on macOS as well
+elapsed_ms() {
+    perl -MTime::HiRes=time -e '
+        open(my $result, ">&", \*STDOUT) or die "cannot dup stdout: $!";
+        open(STDOUT, ">", "/dev/null");
+        open(STDERR, ">", "/dev/null");
+        my $start = time;
+        system(@ARGV);
+        printf $result "%d\n", (time - $start) * 1000;
+    ' -- "$@"
+}
+
+# prints min, median and mean wall time in ms over $RUNS runs of the given command
+measure() {
+    label=$1
+    shift
+    i=0
+    times=""
+    while [ $i -lt $RUNS ]; do
+        times="$times $(elapsed_ms "$@" --inputfile=$INPUT --outputfile=$OUTPUT)"
+        i=$((i + 1))
+    done
+    echo $times | tr ' ' '\n' | sort -n | awk -v label="$label" '
+        { t[NR] = $1; sum += $1 }
+        END { printf "%-8s runs=%d min=%dms median=%dms mean=%dms\n", label, NR, t[1], t[int((NR + 1) / 2)], sum / NR }'
+}
+
+if [ ! -f $JAR ]; then
+    echo "$JAR not found, run 'ant jar' first"
+    exit 1
+fi
+
+measure jvm java -jar $JAR
+
+if [ -f $CDS ]; then
+    measure cds java -XX:SharedArchiveFile=$CDS -jar $JAR
+else
+    echo "cds      skipped, run 'ant cds-archive' first"
+fi
+
+if [ -x $NATIVE ]; then
+    measure native $NATIVE
+else
+    echo "native   skipped, run 'ant native-image' first"
+fi
+
+rm -f $OUTPUT
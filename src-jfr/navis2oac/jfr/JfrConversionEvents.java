@@ -0,0 +1,93 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import navis2oac.ConversionEvents;
+
+/**
+ * Flight recorder implementation of ConversionEvents, loaded by name when
+ * present. Enable in a recording with the event names below, e.g.
+ *
+ * <pre>
+ * java -XX:StartFlightRecording:filename=conversion.jfr ...
+ * jfr print --events navis2oac.ConversionPhase conversion.jfr
+ * </pre>
+ *
+ * @author hennieb
+ */
+public class JfrConversionEvents extends ConversionEvents {
+
+    public Event beginPhase(String phase) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+
+        return new Timed(event);
+    }
+
+    public Event beginPage(String inputName) {
+        PageEvent event = new PageEvent();
+        event.input = inputName;
+
+        return new Timed(event);
+    }
+
+    @Name("navis2oac.ConversionPhase")
+    @Label("Conversion Phase")
+    @Category("navis2oac")
+    @Description("One phase of the conversion of a page")
+    static class PhaseEvent extends CountingEvent {
+
+        @Label("Phase")
+        String phase;
+    }
+
+    @Name("navis2oac.PageConversion")
+    @Label("Page Conversion")
+    @Category("navis2oac")
+    @Description("Conversion of one page, all phases")
+    static class PageEvent extends CountingEvent {
+
+        @Label("Input")
+        String input;
+    }
+
+    abstract static class CountingEvent extends jdk.jfr.Event {
+
+        @Label("Page ID")
+        String pageID;
+
+        @Label("Records")
+        int recordCount;
+
+        @Label("Triples")
+        int tripleCount;
+    }
+
+    private static class Timed extends Event {
+
+        private final CountingEvent event;
+
+        Timed(CountingEvent event) {
+            this.event = event;
+            event.begin();
+        }
+
+        public void end(String pageID, int recordCount, int tripleCount) {
+            event.end();
+
+            if (event.shouldCommit()) {
+                event.pageID = pageID;
+                event.recordCount = recordCount;
+                event.tripleCount = tripleCount;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only lookup of converted annotations by navis ID, line ID, canvas and
+ * text offset range, without going through the RDF store.
+ *
+ * All data lives in one ByteBuffer with a fixed layout, so that an index can
+ * be written to a sidecar file and loaded again by memory-mapping it:
+ *
+ * <pre>
+ * header       magic, version, entry count, hash slots, and the positions of the sections below
+ * entries      per segment: kind, id, line, canvas, text offset, text range, x, y, w, h
+ *              (ints; id, line and canvas are positions in the string table),
+ *              sorted on canvas, then page entries first, then text offset
+ * maxEnd       per entry: the highest text offset + range of the line and word
+ *              zone entries of the same canvas up to and including this one,
+ *              for interval queries; the page spans all text, so it is left out
+ * lineOrder    entry numbers sorted on line, then text offset
+ * idHash       open addressing hash tables, 1 + entry number per slot (0 is empty),
+ * lineHash       lineHash points into lineOrder, canvasHash to the first
+ * canvasHash     entry of the canvas
+ * strings      distinct strings, length prefixed UTF-8
+ * </pre>
+ *
+ * Equal strings are stored once, so within the index strings can be compared
+ * by position. Of segments with the same id, the last one added is found by
+ * id, as in the segment map of the converter.
+ *
+ * @author hennieb
+ */
+public class AnnotationIndex {
+
+    public static final int KIND_PAGE = 0;
+    public static final int KIND_LINE = 1;
+    public static final int KIND_WORDZONE = 2;
+
+    private static final int MAGIC = 0x4E324F49; // "N2OI"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 40;
+    private static final int ENTRY_INTS = 10;
+    private static final int ENTRY_SIZE = ENTRY_INTS * 4;
+
+    private static final int E_KIND = 0;
+    private static final int E_ID = 1;
+    private static final int E_LINE = 2;
+    private static final int E_CANVAS = 3;
+    private static final int E_OFFSET = 4;
+    private static final int E_RANGE = 5;
+    private static final int E_X = 6;
+    private static final int E_Y = 7;
+    private static final int E_W = 8;
+    private static final int E_H = 9;
+
+    private ByteBuffer _buffer;
+    private int _entryCount;
+    private int _hashSlots;
+    private int _entriesPos;
+    private int _maxEndPos;
+    private int _lineOrderPos;
+    private int _idHashPos;
+    private int _lineHashPos;
+    private int _canvasHashPos;
+    private int _stringsPos;
+
+    private AnnotationIndex(ByteBuffer buffer) throws IOException {
+        _buffer = buffer;
+
+        if (_buffer.getInt(0) != MAGIC || _buffer.getInt(4) != VERSION) {
+            throw new IOException("not an annotation index, or unsupported version");
+        }
+
+        _entryCount = _buffer.getInt(8);
+        _hashSlots = _buffer.getInt(12);
+        _maxEndPos = _buffer.getInt(16);
+        _lineOrderPos = _buffer.getInt(20);
+        _idHashPos = _buffer.getInt(24);
+        _lineHashPos = _buffer.getInt(28);
+        _canvasHashPos = _buffer.getInt(32);
+        _stringsPos = _buffer.getInt(36);
+        _entriesPos = HEADER_SIZE;
+    }
+
+    /**
+     * Maps an index file into memory. Nothing is read until it is queried.
+     */
+    public static AnnotationIndex load(File indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            return new AnnotationIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+
+        } finally {
+            file.close();   // the mapping stays valid
+        }
+    }
+
+    /**
+     * Writes the index and fsyncs it, as the RDF output is (see
+     * AsyncFileWriter): a batch journal may record it as complete right after.
+     */
+    public void write(File indexFile) throws IOException {
+        ByteBuffer data = _buffer.duplicate();
+        data.clear();
+
+        FileOutputStream out = new FileOutputStream(indexFile);
+        try {
+            FileChannel channel = out.getChannel();
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+    }
+
+    public int size() {
+        return _entryCount;
+    }
+
+    /**
+     * Finds a segment by its id: the navis id of a word zone, the global line
+     * id of a line or the page id of a page.
+     *
+     * @return the segment, or null if unknown
+     */
+    public Annotation findById(String id) {
+        int slot = findSlot(_idHashPos, id, E_ID, false);
+        if (slot < 0) return null;
+
+        return getAnnotation(_buffer.getInt(_idHashPos + slot * 4) - 1);
+    }
+
+    /**
+     * @return the line segment and word zones of a line, in text order
+     */
+    public List<Annotation> findByLine(String lineID) {
+        List<Annotation> result = new ArrayList<Annotation>();
+
+        int slot = findSlot(_lineHashPos, lineID, E_LINE, true);
+        if (slot < 0) return result;
+
+        int pos = _buffer.getInt(_lineHashPos + slot * 4) - 1;
+        int line = getField(_buffer.getInt(_lineOrderPos + pos * 4), E_LINE);
+
+        for (; pos < _entryCount; pos++) {
+            int entry = _buffer.getInt(_lineOrderPos + pos * 4);
+            if (getField(entry, E_LINE) != line) break;
+
+            result.add(getAnnotation(entry));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return all segments on a canvas, in text order
+     */
+    public List<Annotation> findByCanvas(String canvasID) {
+        List<Annotation> result = new ArrayList<Annotation>();
+
+        int first = getFirstOfCanvas(canvasID);
+        if (first < 0) return result;
+
+        int canvas = getField(first, E_CANVAS);
+        for (int entry = first; entry < _entryCount && getField(entry, E_CANVAS) == canvas; entry++) {
+            result.add(getAnnotation(entry));
+        }
+
+        return result;
+    }
+
+    /**
+     * @return the segments on a canvas whose text overlaps [from, to), in text order
+     */
+    public List<Annotation> findByTextRange(String canvasID, int from, int to) {
+        List<Annotation> result = new ArrayList<Annotation>();
+
+        int first = getFirstOfCanvas(canvasID);
+        if (first < 0) return result;
+
+        int canvas = getField(first, E_CANVAS);
+
+        // page entries come first and are not part of maxEnd
+        int firstSegment = first;
+        while (firstSegment < _entryCount && getField(firstSegment, E_CANVAS) == canvas
+                && getField(firstSegment, E_KIND) == KIND_PAGE) {
+            if (overlaps(firstSegment, from, to)) result.add(getAnnotation(firstSegment));
+            firstSegment++;
+        }
+
+        // binary search for the end of the entries of this canvas starting before 'to'
+        int low = firstSegment;
+        int high = _entryCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getField(mid, E_CANVAS) == canvas && getField(mid, E_OFFSET) < to) low = mid + 1;
+            else high = mid;
+        }
+
+        // walk back until no earlier entry of this canvas can reach 'from'
+        int last = low - 1;
+        int entry = last;
+        while (entry >= firstSegment && _buffer.getInt(_maxEndPos + entry * 4) > from) {
+            entry--;
+        }
+
+        for (int i = entry + 1; i <= last; i++) {
+            if (getField(i, E_OFFSET) + getField(i, E_RANGE) > from) {
+                result.add(getAnnotation(i));
+            }
+        }
+
+        return result;
+    }
+
+    private boolean overlaps(int entry, int from, int to) {
+        int offset = getField(entry, E_OFFSET);
+
+        return offset < to && offset + getField(entry, E_RANGE) > from;
+    }
+
+    private int getFirstOfCanvas(String canvasID) {
+        int slot = findSlot(_canvasHashPos, canvasID, E_CANVAS, false);
+        if (slot < 0) return -1;
+
+        return _buffer.getInt(_canvasHashPos + slot * 4) - 1;
+    }
+
+    // linear probing; slots of lineHash refer to positions in lineOrder
+    private int findSlot(int tablePos, String key, int field, boolean viaLineOrder) {
+        if (_hashSlots == 0 || key == null) return -1;
+
+        int slot = key.hashCode() & (_hashSlots - 1);
+        for (int probes = 0; probes < _hashSlots; probes++) {
+            int value = _buffer.getInt(tablePos + slot * 4);
+            if (value == 0) return -1;
+
+            int entry = viaLineOrder ? _buffer.getInt(_lineOrderPos + (value - 1) * 4) : value - 1;
+            if (key.equals(getString(getField(entry, field)))) return slot;
+
+            slot = (slot + 1) & (_hashSlots - 1);
+        }
+
+        return -1;
+    }
+
+    private int getField(int entry, int field) {
+        return _buffer.getInt(_entriesPos + entry * ENTRY_SIZE + field * 4);
+    }
+
+    private String getString(int pos) {
+        if (pos < 0) return null;
+
+        int length = _buffer.getInt(_stringsPos + pos);
+        byte[] bytes = new byte[length];
+        ByteBuffer data = _buffer.duplicate();
+        data.position(_stringsPos + pos + 4);
+        data.get(bytes);
+
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private Annotation getAnnotation(int entry) {
+        return new Annotation(getField(entry, E_KIND),
+                getString(getField(entry, E_ID)),
+                getString(getField(entry, E_LINE)),
+                getString(getField(entry, E_CANVAS)),
+                getField(entry, E_OFFSET), getField(entry, E_RANGE),
+                getField(entry, E_X), getField(entry, E_Y), getField(entry, E_W), getField(entry, E_H));
+    }
+
+    /**
+     * One indexed page, line or word zone segment.
+     */
+    public static class Annotation {
+
+        private int kind;
+        private String id;
+        private String lineID;
+        private String canvasID;
+        private int textOffset;
+        private int textRange;
+        private int x;
+        private int y;
+        private int w;
+        private int h;
+
+        public Annotation(int kind, String id, String lineID, String canvasID,
+                int textOffset, int textRange, int x, int y, int w, int h) {
+            this.kind = kind;
+            this.id = id;
+            this.lineID = lineID;
+            this.canvasID = canvasID;
+            this.textOffset = textOffset;
+            this.textRange = textRange;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        public int getKind() { return kind; }
+        public String getID() { return id; }
+        public String getLineID() { return lineID; }
+        public String getCanvasID() { return canvasID; }
+        public int getTextOffset() { return textOffset; }
+        public int getTextRange() { return textRange; }
+        public int getX() { return x; }
+        public int getY() { return y; }
+        public int getW() { return w; }
+        public int getH() { return h; }
+
+        @Override
+        public String toString() {
+            return id + " [" + textOffset + "," + (textOffset + textRange) + ") rect "
+                    + x + "," + y + "," + w + "," + h + " on " + canvasID;
+        }
+    }
+
+    /**
+     * Collects segments and lays out the index buffer.
+     */
+    public static class Builder {
+
+        private List<Annotation> _annotations = new ArrayList<Annotation>();
+
+        public void add(Annotation annotation) {
+            _annotations.add(annotation);
+        }
+
+        public AnnotationIndex build() {
+            try {
+                return new AnnotationIndex(layout());
+
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);   // cannot happen, the buffer is written here
+            }
+        }
+
+        private ByteBuffer layout() throws UnsupportedEncodingException {
+            List<Annotation> entries = new ArrayList<Annotation>(_annotations);
+            Collections.sort(entries, new Comparator<Annotation>() {
+                public int compare(Annotation a, Annotation b) {
+                    int c = compareStrings(a.canvasID, b.canvasID);
+                    if (c != 0) return c;
+                    if ((a.kind == KIND_PAGE) != (b.kind == KIND_PAGE)) return a.kind == KIND_PAGE ? -1 : 1;
+                    if (a.textOffset != b.textOffset) return a.textOffset < b.textOffset ? -1 : 1;
+                    return a.kind - b.kind;
+                }
+            });
+            int n = entries.size();
+
+            // segment that is found by id: the last one added
+            Map<String,Annotation> lastById = new HashMap<String,Annotation>();
+            for (Annotation a : _annotations) {
+                if (a.id != null) lastById.put(a.id, a);
+            }
+
+            // string table
+            Map<String,Integer> stringPositions = new HashMap<String,Integer>();
+            List<byte[]> strings = new ArrayList<byte[]>();
+            int stringsSize = 0;
+            for (Annotation a : entries) {
+                for (String s : new String[] {a.id, a.lineID, a.canvasID}) {
+                    if (s != null && !stringPositions.containsKey(s)) {
+                        byte[] bytes = s.getBytes("UTF-8");
+                        stringPositions.put(s, stringsSize);
+                        strings.add(bytes);
+                        stringsSize += 4 + bytes.length;
+                    }
+                }
+            }
+
+            // entries in line order
+            Integer[] lineOrder = new Integer[n];
+            for (int i = 0; i < n; i++) lineOrder[i] = i;
+            final List<Annotation> sorted = entries;
+            Arrays.sort(lineOrder, new Comparator<Integer>() {
+                public int compare(Integer i, Integer j) {
+                    Annotation a = sorted.get(i);
+                    Annotation b = sorted.get(j);
+                    int c = compareStrings(a.lineID, b.lineID);
+                    if (c != 0) return c;
+                    if (a.textOffset != b.textOffset) return a.textOffset < b.textOffset ? -1 : 1;
+                    return a.kind - b.kind;
+                }
+            });
+
+            int slots = 1;
+            while (slots < 2 * n) slots <<= 1;
+            if (n == 0) slots = 0;
+
+            int maxEndPos = HEADER_SIZE + n * ENTRY_SIZE;
+            int lineOrderPos = maxEndPos + n * 4;
+            int idHashPos = lineOrderPos + n * 4;
+            int lineHashPos = idHashPos + slots * 4;
+            int canvasHashPos = lineHashPos + slots * 4;
+            int stringsPos = canvasHashPos + slots * 4;
+
+            ByteBuffer buffer = ByteBuffer.allocate(stringsPos + stringsSize);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, n);
+            buffer.putInt(12, slots);
+            buffer.putInt(16, maxEndPos);
+            buffer.putInt(20, lineOrderPos);
+            buffer.putInt(24, idHashPos);
+            buffer.putInt(28, lineHashPos);
+            buffer.putInt(32, canvasHashPos);
+            buffer.putInt(36, stringsPos);
+
+            int maxEnd = 0;
+            String canvas = null;
+            for (int i = 0; i < n; i++) {
+                Annotation a = entries.get(i);
+                int pos = HEADER_SIZE + i * ENTRY_SIZE;
+
+                buffer.putInt(pos + E_KIND * 4, a.kind);
+                buffer.putInt(pos + E_ID * 4, position(stringPositions, a.id));
+                buffer.putInt(pos + E_LINE * 4, position(stringPositions, a.lineID));
+                buffer.putInt(pos + E_CANVAS * 4, position(stringPositions, a.canvasID));
+                buffer.putInt(pos + E_OFFSET * 4, a.textOffset);
+                buffer.putInt(pos + E_RANGE * 4, a.textRange);
+                buffer.putInt(pos + E_X * 4, a.x);
+                buffer.putInt(pos + E_Y * 4, a.y);
+                buffer.putInt(pos + E_W * 4, a.w);
+                buffer.putInt(pos + E_H * 4, a.h);
+
+                if (i == 0 || compareStrings(canvas, a.canvasID) != 0) {   // first of canvas
+                    canvas = a.canvasID;
+                    maxEnd = Integer.MIN_VALUE;
+                    if (a.canvasID != null) insert(buffer, canvasHashPos, slots, a.canvasID, i + 1);
+                }
+                if (a.kind != KIND_PAGE) maxEnd = Math.max(maxEnd, a.textOffset + a.textRange);
+                buffer.putInt(maxEndPos + i * 4, maxEnd);
+
+                if (a.id != null && lastById.get(a.id) == a) insert(buffer, idHashPos, slots, a.id, i + 1);
+            }
+
+            String line = null;
+            for (int pos = 0; pos < n; pos++) {
+                Annotation a = entries.get(lineOrder[pos]);
+                buffer.putInt(lineOrderPos + pos * 4, lineOrder[pos]);
+
+                if (a.lineID != null && (pos == 0 || !a.lineID.equals(line))) {
+                    insert(buffer, lineHashPos, slots, a.lineID, pos + 1);
+                }
+                line = a.lineID;
+            }
+
+            int pos = stringsPos;
+            for (byte[] bytes : strings) {
+                buffer.putInt(pos, bytes.length);
+                for (int i = 0; i < bytes.length; i++) {
+                    buffer.put(pos + 4 + i, bytes[i]);
+                }
+                pos += 4 + bytes.length;
+            }
+
+            return buffer;
+        }
+
+        // keys are unique, duplicates are left out by the caller
+        private static void insert(ByteBuffer buffer, int tablePos, int slots, String key, int value) {
+            int slot = key.hashCode() & (slots - 1);
+            while (buffer.getInt(tablePos + slot * 4) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            buffer.putInt(tablePos + slot * 4, value);
+        }
+
+        private static int position(Map<String,Integer> stringPositions, String s) {
+            if (s == null) return -1;
+            return stringPositions.get(s);
+        }
+
+        private static int compareStrings(String a, String b) {
+            if (a == null) return b == null ? 0 : -1;
+            if (b == null) return 1;
+            return a.compareTo(b);
+        }
+    }
+}
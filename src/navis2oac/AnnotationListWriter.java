@@ -0,0 +1,117 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes the IIIF (Presentation 2) annotation list of one canvas as JSON, one
+ * text annotation at a time, so a viewer can serve it as a static file. The
+ * list is written under a temporary name and renamed by close.
+ *
+ * @author hennieb
+ */
+public class AnnotationListWriter {
+
+    public static final String CONTEXT = "http://iiif.io/api/presentation/2/context.json";
+
+    private File _file;
+    private File _partialFile;
+    private Writer _out;
+    private String _canvasURI;
+    private boolean _first = true;
+    private boolean _closed = false;
+
+    public AnnotationListWriter(File file, String listURI, String canvasURI) throws IOException {
+        _file = file;
+        _canvasURI = canvasURI;
+
+        // a name of its own, concurrent conversions of the page do not share it
+        file.getParentFile().mkdirs();
+        _partialFile = File.createTempFile(file.getName(), ".partial", file.getParentFile());
+        _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_partialFile), "UTF-8"));
+        _out.write("{\n  \"@context\": " + toJSON(CONTEXT) + ",\n");
+        _out.write("  \"@id\": " + toJSON(listURI) + ",\n");
+        _out.write("  \"@type\": \"sc:AnnotationList\",\n");
+        _out.write("  \"resources\": [");
+    }
+
+    /**
+     * Adds a text annotation on a region of the canvas. A region without
+     * extent (unknown width or height) is taken as the whole canvas.
+     */
+    public void add(String annotationURI, String text, int x, int y, int w, int h) throws IOException {
+        String on = _canvasURI;
+        if (w > 0 && h > 0) on += "#xywh=" + x + "," + y + "," + w + "," + h;
+
+        _out.write(_first ? "\n" : ",\n");
+        _first = false;
+
+        _out.write("    {\"@id\": " + toJSON(annotationURI)
+                + ", \"@type\": \"oa:Annotation\", \"motivation\": \"sc:painting\",\n");
+        _out.write("     \"resource\": {\"@type\": \"cnt:ContentAsText\", \"format\": \"text/plain\", \"chars\": "
+                + toJSON(text) + "},\n");
+        _out.write("     \"on\": " + toJSON(on) + "}");
+    }
+
+    /**
+     * Completes the list and puts it under its final name.
+     */
+    public void close() throws IOException {
+        try {
+            _out.write(_first ? "]\n}\n" : "\n  ]\n}\n");
+        } finally {
+            _out.close();
+        }
+
+        ArchiveConverter.publish(_partialFile, _file);
+        _closed = true;
+    }
+
+    /**
+     * Removes the partial list of a conversion that failed; does nothing
+     * after a successful close.
+     */
+    public void abort() {
+        if (_closed) return;
+
+        try {
+            _out.close();
+        } catch (IOException ex) {
+            // removed anyway
+        }
+        _partialFile.delete();
+    }
+
+    /**
+     * @return value as a JSON string literal
+     */
+    static String toJSON(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2);
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) json.append(String.format("\\u%04x", (int) c));
+                    else json.append(c);
+            }
+        }
+        json.append('"');
+
+        return json.toString();
+    }
+}
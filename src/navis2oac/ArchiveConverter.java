@@ -0,0 +1,318 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.openrdf.repository.RepositoryException;
+
+/**
+ * Converts the navis or line strip files in a zip archive without extracting
+ * it to disk. Entries are read one after the other from the archive stream
+ * and handed to a pool of workers as soon as they are read; each worker
+ * converts the entry and writes <entry>.rdf into the output directory.
+ * Entries may themselves be gzipped.
+ *
+ * Outputs are written under a temporary name and renamed when complete, then
+ * the entry is recorded in a BatchJournal in the output directory. A resumed
+ * run skips the entries in the journal and removes partial outputs, so an
+ * interrupted run only loses the entries that were being converted.
+ *
+ * With a storedir, all entries are put in the one store; it is kept open for
+ * the whole run instead of being opened again for each entry.
+ *
+ * @author hennieb
+ */
+public class ArchiveConverter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PARTIAL_SUFFIX = ".partial";
+
+    private ConversionOptions _options;
+    private int _threads;
+    private boolean _resume = false;
+
+    /**
+     * @param options options of the conversion of each entry, with the index
+     * file taken as a directory for the index files of the entries
+     */
+    public ArchiveConverter(ConversionOptions options) {
+        _options = options;
+        _threads = options.getThreads();
+    }
+
+    /**
+     * @param resume continue an earlier run into the same output directory
+     */
+    public void setResume(boolean resume) {
+        _resume = resume;
+    }
+
+    public static boolean isArchive(String fileName) {
+        return fileName.toLowerCase().endsWith(".zip");
+    }
+
+    /**
+     * Opens a plain or gzipped (.gz) input file.
+     */
+    public static InputStream openInput(String fileName) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(fileName), BUFFER_SIZE);
+
+        if (fileName.toLowerCase().endsWith(".gz")) {
+            return new GZIPInputStream(input, BUFFER_SIZE);
+        }
+        return input;
+    }
+
+    /**
+     * @throws ConversionException if the archive cannot be read, or entries
+     * failed; the other entries are converted anyway
+     */
+    public void convert(File archive, final File outputDir) throws ConversionException {
+        outputDir.mkdirs();
+
+        final BatchJournal journal = new BatchJournal(new File(outputDir, BatchJournal.FILE_NAME));
+        try {
+            if (_resume) {
+                journal.load();
+                removePartialOutputs(outputDir);
+                if (_options.getIndexFile() != null) removePartialOutputs(_options.getIndexFile());
+                System.err.println("resuming, " + journal.size() + " entries done in earlier runs");
+            } else {
+                journal.reset();
+            }
+
+        } catch (IOException ex) {
+            throw new ConversionException("cannot use journal in " + outputDir, ex);
+        }
+
+        SesameStore store = _options.getStoreDir() != null ? SesameStore.open(_options.getStoreDir()) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+
+        // limits the number of entries read ahead of the workers
+        final Semaphore inFlight = new Semaphore(_threads * 2);
+
+        final AtomicInteger entries = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        IOException archiveError = null;
+
+        ZipInputStream zip = null;
+        try {
+            zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE));
+
+            ZipEntry entry = zip.getNextEntry();
+            while (entry != null) {
+                if (!entry.isDirectory() && !isHidden(entry.getName()) && !journal.isDone(entry.getName())) {
+                    final String name = entry.getName();
+                    final byte[] data = readEntry(zip);
+
+                    entries.incrementAndGet();
+                    inFlight.acquire();
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                convertEntry(name, getBaseName(name), openEntry(name, data), outputDir, journal);
+
+                            } catch (ConversionException ex) {
+                                failures.incrementAndGet();
+                                Logger.getLogger(ArchiveConverter.class.getName()).log(Level.SEVERE, "conversion of " + name + " failed", ex);
+                            } catch (IOException ex) {
+                                failures.incrementAndGet();
+                                Logger.getLogger(ArchiveConverter.class.getName()).log(Level.SEVERE, "conversion of " + name + " failed", ex);
+                            } catch (RuntimeException ex) {
+                                failures.incrementAndGet();
+                                Logger.getLogger(ArchiveConverter.class.getName()).log(Level.SEVERE, "conversion of " + name + " failed", ex);
+                            } finally {
+                                inFlight.release();
+                            }
+                        }
+                    });
+                }
+
+                entry = zip.getNextEntry();
+            }
+
+        } catch (IOException ex) {
+            archiveError = ex;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(ArchiveConverter.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        // the shared store stays open, the pages of this run are put on disk now
+        RepositoryException storeError = null;
+        if (store != null) {
+            try {
+                store.sync();
+            } catch (RepositoryException ex) {
+                storeError = ex;
+            }
+            store.close();
+        }
+
+        if (_options.getIiifDir() != null) {
+            try {
+                IiifManifest.write(_options.getIiifDir());
+            } catch (IOException ex) {
+                Logger.getLogger(ArchiveConverter.class.getName()).log(Level.SEVERE, "cannot write IIIF manifest", ex);
+            }
+        }
+
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ArchiveConverter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+
+        if (archiveError != null) {
+            throw new ConversionException("cannot read " + archive + " after " + entries.get() + " entries", archiveError);
+        }
+        if (failures.get() > 0) {
+            throw new ConversionException(failures.get() + " of " + entries.get() + " entries of " + archive + " failed");
+        }
+        if (storeError != null) {
+            throw new ConversionException("cannot write store " + _options.getStoreDir(), storeError);
+        }
+    }
+
+    static InputSource openEntry(String name, byte[] data) throws IOException {
+        InputStream input = new ByteArrayInputStream(data);
+        if (name.toLowerCase().endsWith(".gz")) {
+            input = new GZIPInputStream(input, BUFFER_SIZE);
+        }
+
+        return InputSource.fromStream(input, name);
+    }
+
+    /**
+     * Converts input to baseName.rdf in outputDir, atomically, and records it
+     * in journal under name. Also used by HotFolder.
+     */
+    void convertEntry(String name, String baseName, InputSource input, File outputDir, BatchJournal journal)
+            throws ConversionException, IOException {
+        ConversionOptions entryOptions = getEntryOptions(baseName);
+        File output = new File(outputDir, baseName + ".rdf");
+        File partialOutput = new File(outputDir, baseName + ".rdf" + PARTIAL_SUFFIX);
+
+        try {
+            new Converter(entryOptions).convert(input, RDFSink.toFile(partialOutput));
+
+        } catch (ConversionException ex) {
+            partialOutput.delete();
+            if (entryOptions.getIndexFile() != null) entryOptions.getIndexFile().delete();
+            throw ex;
+        }
+
+        if (entryOptions.getIndexFile() != null) {
+            File index = getFinalFile(entryOptions.getIndexFile());
+            publish(entryOptions.getIndexFile(), index);
+            publish(partialOutput, output);
+            journal.add(name, output, index);
+        } else {
+            publish(partialOutput, output);
+            journal.add(name, output);
+        }
+    }
+
+    // export runs on the worker thread, the workers already use all processors;
+    // the index file is written under its partial name
+    private ConversionOptions getEntryOptions(String baseName) {
+        ConversionOptions.Builder entryOptions = _options.toBuilder().setThreads(1);
+
+        if (_options.getIndexFile() != null) {   // one lookup index per entry, in the given directory
+            File indexDir = _options.getIndexFile();
+            indexDir.mkdirs();
+            entryOptions.setIndexFile(new File(indexDir, baseName + ".idx" + PARTIAL_SUFFIX));
+        }
+
+        return entryOptions.build();
+    }
+
+    private static File getFinalFile(File partial) {
+        String path = partial.getPath();
+        return new File(path.substring(0, path.length() - PARTIAL_SUFFIX.length()));
+    }
+
+    // complete file under its final name; replaces the output of an earlier run
+    static void publish(File partial, File complete) throws IOException {
+        if (!partial.renameTo(complete)) {
+            complete.delete();
+            if (!partial.renameTo(complete)) throw new IOException("cannot rename " + partial + " to " + complete);
+        }
+    }
+
+    static void removePartialOutputs(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        for (File f : files) {
+            if (f.getName().endsWith(PARTIAL_SUFFIX) && !f.delete()) {
+                Logger.getLogger(ArchiveConverter.class.getName()).log(Level.WARNING, "cannot remove partial output {0}", f);
+            }
+        }
+    }
+
+    // path in archive with directories flattened and extension(s) removed
+    static String getBaseName(String name) {
+        String baseName = name;
+
+        if (baseName.toLowerCase().endsWith(".gz")) baseName = baseName.substring(0, baseName.length() - 3);
+
+        int dot = baseName.lastIndexOf('.');
+        if (dot > baseName.lastIndexOf('/')) baseName = baseName.substring(0, dot);
+
+        return baseName.replace('/', '_');
+    }
+
+    static boolean isHidden(String name) {
+        String fileName = name.substring(name.lastIndexOf('/') + 1);
+
+        return name.startsWith("__MACOSX/") || fileName.startsWith(".");
+    }
+
+    static byte[] readEntry(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        int n = zip.read(buffer);
+        while (n >= 0) {
+            data.write(buffer, 0, n);
+            n = zip.read(buffer);
+        }
+
+        return data.toByteArray();
+    }
+}
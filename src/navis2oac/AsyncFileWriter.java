@@ -0,0 +1,229 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * UTF-8 file writer that does its disk I/O on a background thread. Text is
+ * encoded into one of two large direct buffers; a full buffer is handed to
+ * the background thread, which writes it to the FileChannel while the
+ * calling thread fills the other one. The caller only waits when the disk
+ * falls a whole buffer behind. close() writes the rest, fsyncs the file and
+ * closes it.
+ *
+ * Batch runs open thousands of files, so all writers share one pool of I/O
+ * threads and the direct buffers are pooled for the next writer. Output that
+ * fits in one buffer is written by close on the calling thread, without a
+ * second buffer or a background write.
+ *
+ * @author hennieb
+ */
+public class AsyncFileWriter extends Writer {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int CHAR_BUFFER_SIZE = 8 * 1024;
+
+    // most direct buffers kept for reuse, about two per concurrent writer
+    private static final int MAX_POOLED_BUFFERS = 2 * Runtime.getRuntime().availableProcessors();
+
+    private static final LinkedList<ByteBuffer> BUFFER_POOL = new LinkedList<ByteBuffer>();
+
+    // each writer has at most one write pending, so its writes stay in order on a shared pool
+    private static final ExecutorService IO_THREADS = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "navis2oac-writer");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private FileOutputStream _out;
+    private FileChannel _channel;
+    private CharsetEncoder _encoder;
+
+    private CharBuffer _chars = CharBuffer.allocate(CHAR_BUFFER_SIZE);
+    private ByteBuffer _current = acquireBuffer();
+    private ByteBuffer _spare;  // taken from the pool at the first hand off
+
+    private Future<Void> _pendingWrite;
+    private boolean _closed = false;
+
+    public AsyncFileWriter(File file) throws FileNotFoundException {
+        _out = new FileOutputStream(file);
+        _channel = _out.getChannel();
+
+        _encoder = Charset.forName("UTF-8").newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            int n = Math.min(len, _chars.remaining());
+            _chars.put(cbuf, off, n);
+            off += n;
+            len -= n;
+
+            if (!_chars.hasRemaining()) encodeChars(false);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            int n = Math.min(len, _chars.remaining());
+            _chars.put(str, off, off + n);
+            off += n;
+            len -= n;
+
+            if (!_chars.hasRemaining()) encodeChars(false);
+        }
+    }
+
+    /**
+     * Hands everything written so far to the operating system. Does not fsync,
+     * that is left to close().
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+
+        encodeChars(false);
+        if (_current.position() > 0) handOff();
+        waitForPendingWrite();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed) return;
+
+        try {
+            encodeChars(true);
+            while (_encoder.flush(_current).isOverflow()) {
+                handOff();
+            }
+            waitForPendingWrite();
+
+            // the rest is written here, the caller waits for it anyway
+            _current.flip();
+            while (_current.hasRemaining()) {
+                _channel.write(_current);
+            }
+
+            _channel.force(true);
+
+        } finally {
+            _closed = true;
+            try {
+                waitForPendingWrite();  // after a failure, the buffer may still be in use
+            } catch (IOException ex) {
+                // the first error is reported
+            } finally {
+                releaseBuffer(_current);
+                releaseBuffer(_spare);
+                _current = null;
+                _spare = null;
+                _out.close();
+            }
+        }
+    }
+
+    // encodes the buffered chars; an incomplete surrogate pair stays in _chars
+    private void encodeChars(boolean endOfInput) throws IOException {
+        _chars.flip();
+
+        CoderResult result = _encoder.encode(_chars, _current, endOfInput);
+        while (result.isOverflow()) {
+            handOff();
+            result = _encoder.encode(_chars, _current, endOfInput);
+        }
+        if (result.isError()) result.throwException();
+
+        _chars.compact();
+    }
+
+    // hands the current buffer to the background thread and continues in the spare one
+    private void handOff() throws IOException {
+        waitForPendingWrite();
+
+        final ByteBuffer full = _current;
+        full.flip();
+
+        _current = _spare != null ? _spare : acquireBuffer();
+        _current.clear();
+        _spare = full;
+
+        _pendingWrite = IO_THREADS.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                while (full.hasRemaining()) {
+                    _channel.write(full);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void waitForPendingWrite() throws IOException {
+        if (_pendingWrite == null) return;
+
+        try {
+            _pendingWrite.get();
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause().toString());
+        } finally {
+            _pendingWrite = null;
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        synchronized (BUFFER_POOL) {
+            if (!BUFFER_POOL.isEmpty()) return BUFFER_POOL.removeFirst();
+        }
+        return ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private static void releaseBuffer(ByteBuffer buffer) {
+        if (buffer == null) return;
+
+        buffer.clear();
+        synchronized (BUFFER_POOL) {
+            if (BUFFER_POOL.size() < MAX_POOLED_BUFFERS) BUFFER_POOL.addFirst(buffer);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (_closed) throw new IOException("writer closed");
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Append-only record of the completed inputs of a batch run, so that an
+ * interrupted run can be resumed. An input is recorded only after its outputs
+ * are complete under their final names, one line per input:
+ *
+ * <pre>
+ * input TAB output TAB output ...
+ * </pre>
+ *
+ * Each line is synced to disk before add returns. A line that was cut off by
+ * a crash is removed when the journal is loaded; its input is converted
+ * again, as is an input of which an output has gone missing since.
+ *
+ * @author hennieb
+ */
+public class BatchJournal {
+
+    public static final String FILE_NAME = "navis2oac-journal.txt";
+
+    private File _file;
+    private Set<String> _done = new HashSet<String>();
+    private FileOutputStream _out;
+
+    public BatchJournal(File file) {
+        _file = file;
+    }
+
+    /**
+     * Reads the inputs completed by an earlier run.
+     */
+    public synchronized void load() throws IOException {
+        if (!_file.exists()) return;
+
+        byte[] data = readFile(_file);
+
+        int complete = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') complete = i + 1;
+        }
+
+        if (complete < data.length) {   // cut off line
+            RandomAccessFile file = new RandomAccessFile(_file, "rw");
+            try {
+                file.setLength(complete);
+            } finally {
+                file.close();
+            }
+        }
+
+        for (String line : new String(data, 0, complete, "UTF-8").split("\n")) {
+            if (line.length() > 0 && outputsExist(line)) _done.add(line.split("\t")[0]);
+        }
+    }
+
+    /**
+     * Forgets all earlier runs.
+     */
+    public synchronized void reset() throws IOException {
+        _done.clear();
+        if (_file.exists() && !_file.delete()) throw new IOException("cannot delete " + _file);
+    }
+
+    public synchronized boolean isDone(String input) {
+        return _done.contains(input);
+    }
+
+    /**
+     * Records that input is completed, with the outputs written for it.
+     */
+    public synchronized void add(String input, File... outputs) throws IOException {
+        if (_out == null) _out = new FileOutputStream(_file, true);
+
+        StringBuilder line = new StringBuilder(input);
+        for (File output : outputs) {
+            line.append('\t').append(output.getPath());
+        }
+        line.append('\n');
+
+        _out.write(line.toString().getBytes("UTF-8"));
+        _out.getFD().sync();
+        _done.add(input);
+    }
+
+    public synchronized int size() {
+        return _done.size();
+    }
+
+    public synchronized void close() throws IOException {
+        if (_out != null) {
+            _out.close();
+            _out = null;
+        }
+    }
+
+    private static boolean outputsExist(String line) {
+        String[] fields = line.split("\t");
+        for (int i = 1; i < fields.length; i++) {
+            if (!new File(fields[i]).exists()) return false;
+        }
+        return true;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int n = in.read(buffer);
+            while (n >= 0) {
+                data.write(buffer, 0, n);
+                n = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+
+        return data.toByteArray();
+    }
+}
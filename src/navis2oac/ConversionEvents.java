@@ -0,0 +1,98 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timing events for the phases of a conversion and for each converted page,
+ * for a continuous flight recording. The events are Java Flight Recorder
+ * events, implemented in navis2oac.jfr.JfrConversionEvents (source in
+ * src-jfr, compiled only on Java 11 or later). If that class is absent, or
+ * the JVM has no flight recorder, all events are no-ops.
+ *
+ * @author hennieb
+ */
+public abstract class ConversionEvents {
+
+    public static final String PARSE = "parse";
+    public static final String DERIVE = "derive";
+    public static final String TRANSFORM = "offsets/scaling";
+    public static final String TRIPLES = "triples";
+    public static final String INDEX = "index";
+    public static final String EXPORT = "export";
+    public static final String STREAM = "derive/triples/export";   // bounded memory mode does these line by line
+
+    private static final String JFR_IMPLEMENTATION = "navis2oac.jfr.JfrConversionEvents";
+
+    private static final ConversionEvents INSTANCE = load();
+
+    public static ConversionEvents getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing one phase of the conversion of a page.
+     */
+    public abstract Event beginPhase(String phase);
+
+    /**
+     * Starts timing the conversion of a whole page.
+     */
+    public abstract Event beginPage(String inputName);
+
+    private static ConversionEvents load() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return (ConversionEvents) Class.forName(JFR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+
+        } catch (ClassNotFoundException ex) {
+            return new Disabled();
+        } catch (LinkageError ex) {
+            return new Disabled();
+        } catch (InvocationTargetException ex) {
+            Logger.getLogger(ConversionEvents.class.getName()).log(Level.WARNING, "flight recorder events disabled", ex.getCause());
+            return new Disabled();
+        } catch (NoSuchMethodException ex) {
+            Logger.getLogger(ConversionEvents.class.getName()).log(Level.WARNING, "flight recorder events disabled", ex);
+            return new Disabled();
+        } catch (Exception ex) {
+            Logger.getLogger(ConversionEvents.class.getName()).log(Level.WARNING, "flight recorder events disabled", ex);
+            return new Disabled();
+        }
+    }
+
+    /**
+     * A timed event; end commits it, if it is enabled in the recording.
+     */
+    public abstract static class Event {
+
+        /**
+         * @param pageID page the event is for, null if not known
+         * @param recordCount navis records or line strips handled
+         * @param tripleCount triples generated so far for the page
+         */
+        public abstract void end(String pageID, int recordCount, int tripleCount);
+    }
+
+    private static class Disabled extends ConversionEvents {
+
+        private static final Event NONE = new Event() {
+            public void end(String pageID, int recordCount, int tripleCount) {
+            }
+        };
+
+        public Event beginPhase(String phase) {
+            return NONE;
+        }
+
+        public Event beginPage(String inputName) {
+            return NONE;
+        }
+    }
+}
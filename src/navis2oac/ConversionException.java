@@ -0,0 +1,25 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+/**
+ * Conversion of a page failed: its input could not be read or parsed, or its
+ * output could not be written.
+ *
+ * @author hennieb
+ */
+public class ConversionException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public ConversionException(String message) {
+        super(message);
+    }
+
+    public ConversionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
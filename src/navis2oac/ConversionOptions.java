@@ -0,0 +1,279 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+
+/**
+ * Immutable settings of a conversion, created with a Builder or parsed from
+ * command line arguments. Input and output are not part of the options, they
+ * are passed to Converter.convert, so one options object can be shared by
+ * any number of (concurrent) conversions.
+ *
+ * @author hennieb
+ */
+public final class ConversionOptions {
+
+    private final int xOffset;
+    private final int yOffset;
+    private final Integer xCanvas;
+    private final Integer yCanvas;
+    private final double scaleFactor;
+    private final boolean lineStrips;
+    private final long maxMemory;
+    private final int threads;
+    private final File storeDir;
+    private final String graphStore;
+    private final File indexFile;
+    private final File textIndex;
+    private final File scanFile;
+    private final File scanDir;
+    private final File imageCache;
+    private final File snapshotFile;
+    private final File deltaFile;
+    private final File iiifDir;
+
+    private ConversionOptions(Builder b) {
+        xOffset = b.xOffset;
+        yOffset = b.yOffset;
+        xCanvas = b.xCanvas;
+        yCanvas = b.yCanvas;
+        scaleFactor = b.scaleFactor;
+        lineStrips = b.lineStrips;
+        maxMemory = b.maxMemory;
+        threads = b.threads;
+        storeDir = b.storeDir;
+        graphStore = b.graphStore;
+        indexFile = b.indexFile;
+        textIndex = b.textIndex;
+        scanFile = b.scanFile;
+        scanDir = b.scanDir;
+        imageCache = b.imageCache;
+        snapshotFile = b.snapshotFile;
+        deltaFile = b.deltaFile;
+        iiifDir = b.iiifDir;
+    }
+
+    /**
+     * Parses the conversion arguments of the command line, see Navis2OAC.
+     *
+     * @throws IllegalArgumentException for an unknown or malformed argument
+     */
+    public static ConversionOptions fromArgs(String[] args) {
+        Builder b = new Builder();
+
+        // argument syntax:
+        // --xoffset=<numpixels>
+        // --yoffset=<numpixels>
+        // --xcanvas=<numpixels>
+        // --ycanvas=<numpixels>
+        // --scalefactor=<scalefactor> , scale DOWN by ...
+        // --linestrips
+        // --maxmemory=<megabytes> , heap budget for parsed records, spill to disk beyond
+        // --threads=<numthreads> , default: number of processors
+        // --storedir=<directory> , persistent store, the page's named graph is replaced in it (written to disk with a delay, see SesameStore)
+        // --graphstore=<url> , SPARQL graph store endpoint, the page's named graph is replaced there
+        // --indexfile=<filename> , write annotation lookup index (see AnnotationIndex)
+        // --textindex=<directory> , add words of the page to inverted index (see TextIndex)
+        // --scanfile=<filename> , JPEG/PNG/TIFF scan of the page, canvas size is read from it
+        // --scandir=<directory> , directory with scans <page id>.jpg (.jpeg, .png, .tif, .tiff)
+        // --imagecache=<filename> , cache of scan sizes, kept across runs (see ImageSizeCache)
+        // --snapshot=<filename> , annotations of the previous conversion of the page, replaced (see PageSnapshot)
+        // --deltafile=<filename> , write changes since the snapshot as SPARQL update (see SparqlDelta)
+        // --iiifdir=<directory> , write IIIF annotation list and canvas of the page, the manifest after a batch (see IiifManifest)
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf("=") + 1);
+
+            try {
+                if (arg.startsWith("--xoffset=")) {
+                    b.setXOffset(Integer.parseInt(value));
+                } else if (arg.startsWith("--yoffset=")) {
+                    b.setYOffset(Integer.parseInt(value));
+                } else if (arg.startsWith("--xcanvas=")) {
+                    b.setCanvasWidth(Integer.valueOf(value));
+                } else if (arg.startsWith("--ycanvas=")) {
+                    b.setCanvasHeight(Integer.valueOf(value));
+                } else if (arg.startsWith("--scalefactor")) {
+                    b.setScaleFactor(Double.parseDouble(value));
+                } else if (arg.startsWith("--maxmemory=")) {
+                    b.setMaxMemory(Long.parseLong(value));
+                } else if (arg.startsWith("--threads=")) {
+                    b.setThreads(Integer.parseInt(value));
+                } else if (arg.startsWith("--storedir=")) {
+                    b.setStoreDir(new File(value));
+                } else if (arg.startsWith("--graphstore=")) {
+                    b.setGraphStore(value);
+                } else if (arg.startsWith("--indexfile=")) {
+                    b.setIndexFile(new File(value));
+                } else if (arg.startsWith("--textindex=")) {
+                    b.setTextIndex(new File(value));
+                } else if (arg.startsWith("--scanfile=")) {
+                    b.setScanFile(new File(value));
+                } else if (arg.startsWith("--scandir=")) {
+                    b.setScanDir(new File(value));
+                } else if (arg.startsWith("--imagecache=")) {
+                    b.setImageCache(new File(value));
+                } else if (arg.startsWith("--snapshot=")) {
+                    b.setSnapshotFile(new File(value));
+                } else if (arg.startsWith("--deltafile=")) {
+                    b.setDeltaFile(new File(value));
+                } else if (arg.startsWith("--iiifdir=")) {
+                    b.setIiifDir(new File(value));
+                } else if (arg.startsWith("--linestrips")) {
+                    b.setLineStrips(true);
+                } else {
+                    throw new IllegalArgumentException("Illegal argument: " + arg);
+                }
+
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Illegal argument: " + arg);
+            }
+        }
+
+        return b.build();
+    }
+
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
+
+    public int getXOffset() { return xOffset; }
+    public int getYOffset() { return yOffset; }
+
+    /** @return canvas width, or null if estimated from the segments */
+    public Integer getCanvasWidth() { return xCanvas; }
+
+    /** @return canvas height, or null if estimated from the segments */
+    public Integer getCanvasHeight() { return yCanvas; }
+
+    /** @return factor to scale coordinates DOWN by, 0 for no scaling */
+    public double getScaleFactor() { return scaleFactor; }
+
+    public boolean isLineStrips() { return lineStrips; }
+
+    /** @return heap budget in megabytes for bounded conversion, 0 for unbounded */
+    public long getMaxMemory() { return maxMemory; }
+
+    public int getThreads() { return threads; }
+    public File getStoreDir() { return storeDir; }
+    public String getGraphStore() { return graphStore; }
+    public File getIndexFile() { return indexFile; }
+    public File getTextIndex() { return textIndex; }
+
+    /** @return scan of the page to read the canvas size from, or null */
+    public File getScanFile() { return scanFile; }
+
+    /** @return directory to look up the scan of a page in by page id, or null */
+    public File getScanDir() { return scanDir; }
+
+    /** @return file to cache scan sizes in, or null to cache in memory only */
+    public File getImageCache() { return imageCache; }
+
+    /** @return snapshot of the previous conversion of the page, replaced by this one, or null */
+    public File getSnapshotFile() { return snapshotFile; }
+
+    /** @return file to write the changes since the snapshot to, or null */
+    public File getDeltaFile() { return deltaFile; }
+
+    /** @return directory of the IIIF files of the volume, or null */
+    public File getIiifDir() { return iiifDir; }
+
+    public static class Builder {
+
+        private int xOffset = 0;
+        private int yOffset = 0;
+        private Integer xCanvas;
+        private Integer yCanvas;
+        private double scaleFactor = 0;
+        private boolean lineStrips = false;
+        private long maxMemory = 0;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private File storeDir;
+        private String graphStore;
+        private File indexFile;
+        private File textIndex;
+        private File scanFile;
+        private File scanDir;
+        private File imageCache;
+        private File snapshotFile;
+        private File deltaFile;
+        private File iiifDir;
+
+        public Builder() {
+        }
+
+        public Builder(ConversionOptions options) {
+            xOffset = options.xOffset;
+            yOffset = options.yOffset;
+            xCanvas = options.xCanvas;
+            yCanvas = options.yCanvas;
+            scaleFactor = options.scaleFactor;
+            lineStrips = options.lineStrips;
+            maxMemory = options.maxMemory;
+            threads = options.threads;
+            storeDir = options.storeDir;
+            graphStore = options.graphStore;
+            indexFile = options.indexFile;
+            textIndex = options.textIndex;
+            scanFile = options.scanFile;
+            scanDir = options.scanDir;
+            imageCache = options.imageCache;
+            snapshotFile = options.snapshotFile;
+            deltaFile = options.deltaFile;
+            iiifDir = options.iiifDir;
+        }
+
+        public Builder setXOffset(int xOffset) { this.xOffset = xOffset; return this; }
+        public Builder setYOffset(int yOffset) { this.yOffset = yOffset; return this; }
+        public Builder setCanvasWidth(Integer xCanvas) { this.xCanvas = xCanvas; return this; }
+        public Builder setCanvasHeight(Integer yCanvas) { this.yCanvas = yCanvas; return this; }
+        public Builder setScaleFactor(double scaleFactor) { this.scaleFactor = scaleFactor; return this; }
+        public Builder setLineStrips(boolean lineStrips) { this.lineStrips = lineStrips; return this; }
+        public Builder setMaxMemory(long maxMemory) { this.maxMemory = maxMemory; return this; }
+        public Builder setThreads(int threads) { this.threads = threads; return this; }
+        public Builder setStoreDir(File storeDir) { this.storeDir = storeDir; return this; }
+        public Builder setGraphStore(String graphStore) { this.graphStore = graphStore; return this; }
+        public Builder setIndexFile(File indexFile) { this.indexFile = indexFile; return this; }
+        public Builder setTextIndex(File textIndex) { this.textIndex = textIndex; return this; }
+        public Builder setScanFile(File scanFile) { this.scanFile = scanFile; return this; }
+        public Builder setScanDir(File scanDir) { this.scanDir = scanDir; return this; }
+        public Builder setImageCache(File imageCache) { this.imageCache = imageCache; return this; }
+        public Builder setSnapshotFile(File snapshotFile) { this.snapshotFile = snapshotFile; return this; }
+        public Builder setDeltaFile(File deltaFile) { this.deltaFile = deltaFile; return this; }
+        public Builder setIiifDir(File iiifDir) { this.iiifDir = iiifDir; return this; }
+
+        /**
+         * @throws IllegalArgumentException for values out of range, or options
+         * that cannot be combined
+         */
+        public ConversionOptions build() {
+            if (scaleFactor < 0) throw new IllegalArgumentException("scale factor must not be negative");
+            if (maxMemory < 0) throw new IllegalArgumentException("max memory must not be negative");
+            if (threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+
+            // bounded memory mode streams triples to the output, there is no graph to replace
+            if (maxMemory > 0 && (storeDir != null || graphStore != null)) {
+                throw new IllegalArgumentException("max memory cannot be combined with a store dir or graph store");
+            }
+
+            // deltas are computed per annotation of a navis page, converted in memory
+            if (deltaFile != null && snapshotFile == null) {
+                throw new IllegalArgumentException("a delta file needs a snapshot");
+            }
+            if (snapshotFile != null && (lineStrips || maxMemory > 0)) {
+                throw new IllegalArgumentException("a snapshot cannot be combined with line strips or max memory");
+            }
+
+            // line strips have no text to annotate the canvas with
+            if (iiifDir != null && lineStrips) {
+                throw new IllegalArgumentException("IIIF output cannot be combined with line strips");
+            }
+
+            return new ConversionOptions(this);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+/**
+ * Library entry point: converts navis or line strip pages to Open Annotation
+ * RDF/XML with fixed options. A Converter can be shared; convert may be
+ * called from any number of threads at the same time. The working state of
+ * a conversion (parsed records, segments, XML parser) is kept per thread and
+ * reused by the next conversion on that thread.
+ *
+ * Conversions with the same storedir share one store: their pages are
+ * committed to it by a single committer thread, see SesameStore. The store
+ * stays open until the process ends and is written to disk in the
+ * background; SesameStore.open(dir).sync() puts it on disk at once.
+ *
+ * @author hennieb
+ */
+public class Converter {
+
+    private static final ThreadLocal<Navis2OAC> WORKING_STATE = new ThreadLocal<Navis2OAC>() {
+        @Override
+        protected Navis2OAC initialValue() {
+            return new Navis2OAC();
+        }
+    };
+
+    private final ConversionOptions _options;
+
+    public Converter(ConversionOptions options) {
+        if (options == null) throw new IllegalArgumentException("options must not be null");
+        _options = options;
+    }
+
+    public ConversionOptions getOptions() {
+        return _options;
+    }
+
+    /**
+     * Converts one page, read from input, and writes the RDF/XML to output.
+     * Index and store side outputs are written as set in the options.
+     *
+     * @throws ConversionException if the input cannot be read or parsed, or
+     * an output cannot be written
+     */
+    public void convert(InputSource input, RDFSink output) throws ConversionException {
+        if (input == null || output == null) throw new IllegalArgumentException("input and output are required");
+
+        Navis2OAC state = WORKING_STATE.get();
+        try {
+            state.convert(_options, input, output);
+
+        } finally {
+            state.reset();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Generates a synthetic corpus for performance work: navis files, one per
+ * page, with a line record followed by its word zone records for each line,
+ *
+ * <pre>
+ * &lt;txt&gt;...&lt;/txt&gt;&lt;id&gt;navis-PAGE-line-001-y1=100-y2=140&lt;/id&gt;&lt;user&gt;...&lt;/user&gt;&lt;time&gt;...&lt;/time&gt;
+ * &lt;txt&gt;...&lt;/txt&gt;&lt;id&gt;navis-PAGE-line-001-y1=100-y2=140-zone-1-x=10-y=2-w=30-h=35&lt;/id&gt;...
+ * </pre>
+ *
+ * or, with --linestrips, start_process_cutout XML files, a number of text
+ * blocks per page, each with its line strips. The same arguments and seed
+ * give the same corpus. Usage:
+ *
+ * <pre>
+ * CorpusGenerator --outputdir=&lt;directory&gt; [--pages=100] [--lines=30] [--zones=8]
+ *     [--wordlength=6] [--linestrips] [--blocks=4] [--seed=1]
+ * </pre>
+ *
+ * @author hennieb
+ */
+public class CorpusGenerator {
+
+    private static final String[] SYLLABLES = {"de", "van", "het", "en", "ge", "ver", "aan", "zijn",
+        "ter", "om", "be", "lijk", "heid", "ing", "tot", "schap", "ra", "mo", "ke", "sta"};
+    private static final String[] USERS = {"jan", "piet", "klaas", "marijke", "els"};
+
+    private static final int LINE_HEIGHT = 40;
+    private static final int LINE_SPACING = 10;
+    private static final int CHAR_WIDTH = 9;
+    private static final int MARGIN = 100;
+
+    private File _outputDir;
+    private int _pages = 100;
+    private int _lines = 30;
+    private int _zones = 8;
+    private int _wordLength = 6;
+    private boolean _lineStrips = false;
+    private int _blocks = 4;
+    private Random _random;
+
+    public static void main(String[] args) {
+        try {
+            CorpusGenerator generator = new CorpusGenerator(args);
+            generator.generate();
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        } catch (IOException ex) {
+            System.err.println("cannot write corpus: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException for an unknown or malformed argument
+     */
+    public CorpusGenerator(String[] args) {
+        long seed = 1;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf("=") + 1);
+
+            try {
+                if (arg.startsWith("--outputdir=")) {
+                    _outputDir = new File(value);
+                } else if (arg.startsWith("--pages=")) {
+                    _pages = Integer.parseInt(value);
+                } else if (arg.startsWith("--lines=")) {
+                    _lines = Integer.parseInt(value);
+                } else if (arg.startsWith("--zones=")) {
+                    _zones = Integer.parseInt(value);
+                } else if (arg.startsWith("--wordlength=")) {
+                    _wordLength = Integer.parseInt(value);
+                } else if (arg.startsWith("--blocks=")) {
+                    _blocks = Integer.parseInt(value);
+                } else if (arg.startsWith("--seed=")) {
+                    seed = Long.parseLong(value);
+                } else if (arg.equals("--linestrips")) {
+                    _lineStrips = true;
+                } else {
+                    throw new IllegalArgumentException("Illegal argument: " + arg);
+                }
+
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Illegal argument: " + arg);
+            }
+        }
+
+        if (_outputDir == null) throw new IllegalArgumentException("--outputdir=<directory> is required");
+        if (_pages < 1 || _lines < 1 || _zones < 1 || _wordLength < 1 || _blocks < 1) {
+            throw new IllegalArgumentException("counts and lengths must be at least 1");
+        }
+
+        _random = new Random(seed);
+    }
+
+    public void generate() throws IOException {
+        _outputDir.mkdirs();
+
+        for (int page = 1; page <= _pages; page++) {
+            String pageID = String.format("SYN_%05d", page);
+
+            if (_lineStrips) {
+                for (int block = 1; block <= _blocks; block++) {
+                    writeCutout(pageID, block);
+                }
+            } else {
+                writeNavisPage(pageID);
+            }
+        }
+    }
+
+    private void writeNavisPage(String pageID) throws IOException {
+        Writer out = open(new File(_outputDir, pageID + ".txt"));
+        try {
+            for (int line = 1; line <= _lines; line++) {
+                int y1 = MARGIN + (line - 1) * (LINE_HEIGHT + LINE_SPACING);
+                String lineID = String.format("navis-%s-line-%03d-y1=%d-y2=%d", pageID, line, y1, y1 + LINE_HEIGHT);
+                String user = USERS[_random.nextInt(USERS.length)];
+                String time = String.format("2012-%02d-%02d", 1 + _random.nextInt(12), 1 + _random.nextInt(28));
+
+                String[] words = new String[_zones];
+                StringBuilder lineText = new StringBuilder();
+                for (int zone = 0; zone < _zones; zone++) {
+                    words[zone] = createWord();
+                    if (zone > 0) lineText.append(' ');
+                    lineText.append(words[zone]);
+                }
+
+                out.write(record(lineText.toString(), lineID, user, time));
+
+                int x = MARGIN;
+                for (int zone = 1; zone <= _zones; zone++) {
+                    String word = words[zone - 1];
+                    int w = word.length() * CHAR_WIDTH;
+                    int y = _random.nextInt(5);
+                    String zoneID = String.format("%s-zone-%d-x=%d-y=%d-w=%d-h=%d", lineID, zone, x, y, w, LINE_HEIGHT - y);
+
+                    out.write(record(word, zoneID, user, time));
+                    x += w + CHAR_WIDTH;
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // one text block of a page: a rotated region of the scan with a line strip per line
+    private void writeCutout(String pageID, int block) throws IOException {
+        int blockHeight = _lines * (LINE_HEIGHT + LINE_SPACING);
+        int blockWidth = 2 * MARGIN + _zones * (_wordLength + 1) * CHAR_WIDTH;
+        int x1 = MARGIN;
+        int y1 = MARGIN + (block - 1) * (blockHeight + MARGIN);
+        String image = "http://example.org/scans/" + pageID;
+
+        Writer out = open(new File(_outputDir, pageID + "-block" + block + ".xml"));
+        try {
+            out.write("<?xml version=\"1.0\"?>\n<result><start_process_cutout>");
+            out.write("<page_image_original>" + image + ".jpg</page_image_original>");
+            out.write("<page_image_cutout>" + image + "-block" + block + ".jpg</page_image_cutout>");
+            out.write("<width>" + (blockWidth + 2 * MARGIN) + "</width>");
+            out.write("<height>" + (_blocks * (blockHeight + MARGIN) + MARGIN) + "</height>");
+            out.write("<angle>" + (_random.nextInt(5) - 2) + "</angle>");
+            out.write("<x1>" + x1 + "</x1><y1>" + y1 + "</y1>");
+            out.write("<x2>" + (x1 + blockWidth) + "</x2><y2>" + (y1 + blockHeight) + "</y2>");
+            out.write("<status>ok</status>\n<linestrips>");
+
+            for (int line = 1; line <= _lines; line++) {
+                int y = (line - 1) * (LINE_HEIGHT + LINE_SPACING);
+                out.write("<linestrip><line_image>" + image + "-block" + block + "-line" + line + ".jpg</line_image>");
+                out.write("<id>" + line + "</id><y1>" + y + "</y1><y2>" + (y + LINE_HEIGHT) + "</y2></linestrip>");
+            }
+
+            out.write("</linestrips></start_process_cutout></result>\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    // word of about the requested length, from syllables
+    private String createWord() {
+        int length = Math.max(1, _wordLength - 2 + _random.nextInt(5));
+
+        StringBuilder word = new StringBuilder();
+        while (word.length() < length) {
+            word.append(SYLLABLES[_random.nextInt(SYLLABLES.length)]);
+        }
+        word.setLength(length);
+
+        return word.toString();
+    }
+
+    private static String record(String text, String id, String user, String time) {
+        return "<txt>" + text + "</txt><id>" + id + "</id><user>" + user + "</user><time>" + time + "</time>\n";
+    }
+
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openrdf.repository.RepositoryException;
+
+/**
+ * Watches a directory that navis or line strip files are dropped into and
+ * converts each new file to <file>.rdf in the output directory, until
+ * stopped.
+ *
+ * The directory is scanned every POLL_INTERVAL ms. A file is only taken once
+ * its size and modification time have not changed for QUIET_PERIOD ms, so
+ * files that are still being written are left alone; hidden files (such as
+ * .name.tmp during a copy) are ignored. The files that became ready in one
+ * scan are converted as one batch, on a pool of worker threads that is kept
+ * for the whole watch, so the working state of the converters stays warm.
+ *
+ * Outputs are written atomically and recorded in a BatchJournal, like those
+ * of an ArchiveConverter, by file name and modification time: a file that is
+ * replaced is converted again, a watch that is restarted continues where the
+ * previous one stopped. A file that fails is not retried until it changes.
+ *
+ * @author hennieb
+ */
+public class HotFolder {
+
+    private static final long POLL_INTERVAL = 500;
+    private static final long QUIET_PERIOD = 1000;
+
+    private File _inputDir;
+    private File _outputDir;
+    private ConversionOptions _options;
+    private ArchiveConverter _converter;
+
+    // files not yet converted, by name, as seen in the scans so far
+    private Map<String,FileState> _candidates = new HashMap<String,FileState>();
+    private Set<String> _failed = new HashSet<String>();
+
+    private volatile boolean _stopped = false;
+
+    public HotFolder(ConversionOptions options, File inputDir, File outputDir) {
+        if (inputDir.getAbsoluteFile().equals(outputDir.getAbsoluteFile())) {
+            throw new IllegalArgumentException("output directory must differ from the watched directory");
+        }
+
+        _options = options;
+        _inputDir = inputDir;
+        _outputDir = outputDir;
+        _converter = new ArchiveConverter(options);
+    }
+
+    /**
+     * Converts the files in the watched directory as they arrive, until stop
+     * is called.
+     */
+    public void run() {
+        _outputDir.mkdirs();
+
+        BatchJournal journal = new BatchJournal(new File(_outputDir, BatchJournal.FILE_NAME));
+        try {
+            journal.load();
+            ArchiveConverter.removePartialOutputs(_outputDir);
+            if (_options.getIndexFile() != null) ArchiveConverter.removePartialOutputs(_options.getIndexFile());
+
+        } catch (IOException ex) {
+            Logger.getLogger(HotFolder.class.getName()).log(Level.SEVERE, "cannot use journal", ex);
+            return;
+        }
+
+        SesameStore store = _options.getStoreDir() != null ? SesameStore.open(_options.getStoreDir()) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(_options.getThreads());
+
+        System.err.println("watching " + _inputDir + ", " + journal.size() + " files done in earlier runs");
+
+        try {
+            while (!_stopped) {
+                List<File> batch = findReadyFiles(journal);
+
+                if (batch.isEmpty()) {
+                    Thread.sleep(POLL_INTERVAL);
+                } else {
+                    convertBatch(batch, executor, journal);
+                    if (store != null) syncStore(store);
+                }
+            }
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+            if (store != null) store.close();
+
+            try {
+                journal.close();
+            } catch (IOException ex) {
+                Logger.getLogger(HotFolder.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Makes run return once the batch being converted is done.
+     */
+    public void stop() {
+        _stopped = true;
+    }
+
+    // files that have not changed for the quiet period and are not converted yet
+    private List<File> findReadyFiles(BatchJournal journal) {
+        List<File> ready = new ArrayList<File>();
+
+        File[] files = _inputDir.listFiles();
+        if (files == null) return ready;
+
+        long now = System.currentTimeMillis();
+        Map<String,FileState> candidates = new HashMap<String,FileState>();
+
+        for (File file : files) {
+            if (!file.isFile() || ArchiveConverter.isHidden(file.getName())) continue;
+
+            long length = file.length();
+            long modified = file.lastModified();
+
+            String key = getJournalKey(file.getName(), modified);
+            if (journal.isDone(key) || _failed.contains(key)) continue;
+
+            FileState state = _candidates.get(file.getName());
+            if (state == null || state.length != length || state.modified != modified) {
+                candidates.put(file.getName(), new FileState(length, modified, now));
+            } else if (now - state.since >= QUIET_PERIOD) {
+                ready.add(file);
+            } else {
+                candidates.put(file.getName(), state);
+            }
+        }
+
+        // files that are gone, or taken now, are forgotten
+        _candidates = candidates;
+
+        return ready;
+    }
+
+    private void convertBatch(List<File> batch, ExecutorService executor, final BatchJournal journal)
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        List<String> keys = new ArrayList<String>();
+
+        for (final File file : batch) {
+            final String key = getJournalKey(file.getName(), file.lastModified());
+            keys.add(key);
+
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws ConversionException, IOException {
+                    _converter.convertEntry(key, ArchiveConverter.getBaseName(file.getName()),
+                            InputSource.fromFile(file), _outputDir, journal);
+                    return null;
+                }
+            }));
+        }
+
+        int converted = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).get();
+                converted++;
+
+            } catch (ExecutionException ex) {
+                _failed.add(keys.get(i));
+                Logger.getLogger(HotFolder.class.getName()).log(Level.SEVERE, "conversion of " + batch.get(i) + " failed", ex.getCause());
+            }
+        }
+
+        if (converted > 0 && _options.getIiifDir() != null) {
+            try {
+                IiifManifest.write(_options.getIiifDir());
+            } catch (IOException ex) {
+                Logger.getLogger(HotFolder.class.getName()).log(Level.SEVERE, "cannot write IIIF manifest", ex);
+            }
+        }
+
+        System.err.println("converted " + converted + " of " + batch.size() + " files in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // the shared store stays open while watching, each batch is put on disk
+    private void syncStore(SesameStore store) {
+        try {
+            store.sync();
+        } catch (RepositoryException ex) {
+            Logger.getLogger(HotFolder.class.getName()).log(Level.SEVERE, "cannot write store " + _options.getStoreDir(), ex);
+        }
+    }
+
+    private static String getJournalKey(String fileName, long modified) {
+        return fileName + "@" + modified;
+    }
+
+    /**
+     * Size and modification time of a file, and since when it has them.
+     */
+    private static class FileState {
+
+        protected long length;
+        protected long modified;
+        protected long since;
+
+        public FileState(long length, long modified, long since) {
+            this.length = length;
+            this.modified = modified;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Static IIIF (Presentation 2) files of a volume, in one directory:
+ *
+ * <pre>
+ * lists/<page id>.json      annotation list of the canvas of a page, see AnnotationListWriter
+ * canvases/<page id>.json   the canvas of a page
+ * manifest.json             manifest with the canvases of all pages, ordered by page id
+ * </pre>
+ *
+ * Each conversion writes the list and the canvas of its page; the manifest
+ * is put together from the canvas files by write, once after a batch of
+ * conversions, or on request after single page conversions.
+ *
+ * @author hennieb
+ */
+public class IiifManifest {
+
+    public static final String MANIFEST_FILE = "manifest.json";
+
+    private static final String LISTS_DIR = "lists";
+    private static final String CANVASES_DIR = "canvases";
+    private static final String JSON_EXTENSION = ".json";
+
+    private IiifManifest() {
+    }
+
+    public static File getListFile(File dir, String pageID) {
+        return new File(new File(dir, LISTS_DIR), getFileName(pageID));
+    }
+
+    public static String getListURI(String pageID) {
+        return SesameStore.CATCHPLUS + "list/" + pageID;
+    }
+
+    /**
+     * Writes the canvas of a page, with its image and annotation list.
+     */
+    public static void writeCanvas(File dir, String pageID, String canvasURI, int width, int height,
+            String imageURI) throws IOException {
+        File canvasDir = new File(dir, CANVASES_DIR);
+        canvasDir.mkdirs();
+
+        File file = new File(canvasDir, getFileName(pageID));
+        File partialFile = File.createTempFile(file.getName(), ".partial", canvasDir);
+
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partialFile), "UTF-8"));
+            try {
+                out.write("{\"@id\": " + AnnotationListWriter.toJSON(canvasURI) + ", \"@type\": \"sc:Canvas\", \"label\": "
+                        + AnnotationListWriter.toJSON(pageID) + ", \"width\": " + width + ", \"height\": " + height + ",\n");
+                out.write(" \"images\": [{\"@type\": \"oa:Annotation\", \"motivation\": \"sc:painting\", \"resource\": {\"@id\": "
+                        + AnnotationListWriter.toJSON(imageURI) + ", \"@type\": \"dctypes:Image\"}, \"on\": "
+                        + AnnotationListWriter.toJSON(canvasURI) + "}],\n");
+                out.write(" \"otherContent\": [{\"@id\": " + AnnotationListWriter.toJSON(getListURI(pageID))
+                        + ", \"@type\": \"sc:AnnotationList\"}]}");
+            } finally {
+                out.close();
+            }
+
+            ArchiveConverter.publish(partialFile, file);
+        } catch (IOException ex) {
+            partialFile.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes the manifest of the volume in dir, with the canvases written so
+     * far. The directory name is taken as the name of the volume.
+     */
+    public static void write(File dir) throws IOException {
+        File[] canvases = new File(dir, CANVASES_DIR).listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(JSON_EXTENSION);
+            }
+        });
+        if (canvases == null) canvases = new File[0];
+        Arrays.sort(canvases);
+
+        String volume = dir.getAbsoluteFile().getName();
+        File file = new File(dir, MANIFEST_FILE);
+        File partialFile = File.createTempFile(MANIFEST_FILE, ".partial", dir);
+
+        try {
+            Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(partialFile), "UTF-8"));
+            try {
+                out.write("{\n  \"@context\": " + AnnotationListWriter.toJSON(AnnotationListWriter.CONTEXT) + ",\n");
+                out.write("  \"@id\": " + AnnotationListWriter.toJSON(SesameStore.CATCHPLUS + "manifest/" + volume) + ",\n");
+                out.write("  \"@type\": \"sc:Manifest\",\n");
+                out.write("  \"label\": " + AnnotationListWriter.toJSON(volume) + ",\n");
+                out.write("  \"sequences\": [{\"@type\": \"sc:Sequence\", \"canvases\": [");
+
+                for (int i = 0; i < canvases.length; i++) {
+                    out.write(i == 0 ? "\n" : ",\n");
+                    copy(canvases[i], out);
+                }
+
+                out.write("\n  ]}]\n}\n");
+            } finally {
+                out.close();
+            }
+
+            ArchiveConverter.publish(partialFile, file);
+        } catch (IOException ex) {
+            partialFile.delete();
+            throw ex;
+        }
+    }
+
+    // page ids are used as file names, other characters than these are replaced
+    private static String getFileName(String pageID) {
+        return pageID.replaceAll("[^A-Za-z0-9._-]", "_") + JSON_EXTENSION;
+    }
+
+    private static void copy(File file, Writer out) throws IOException {
+        Reader in = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            char[] buffer = new char[8192];
+            int n = in.read(buffer);
+            while (n >= 0) {
+                out.write(buffer, 0, n);
+                n = in.read(buffer);
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads the pixel dimensions of a JPEG, PNG or TIFF image from its header,
+ * without decoding the image. Only the few bytes that hold the dimensions are
+ * read: the IHDR chunk of a PNG, the segment headers up to the frame header
+ * of a JPEG, the first IFD of a TIFF.
+ *
+ * @author hennieb
+ */
+public class ImageProbe {
+
+    private ImageProbe() {
+    }
+
+    /**
+     * @return {width, height}, or null if the file is not a JPEG, PNG or
+     * TIFF image, or its header is damaged
+     */
+    public static int[] getDimensions(File image) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(image, "r");
+        try {
+            byte[] magic = new byte[4];
+            if (file.read(magic) < 4) return null;
+
+            if ((magic[0] & 0xFF) == 0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G') {
+                return probePNG(file);
+            } else if ((magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xD8) {
+                return probeJPEG(file);
+            } else if (magic[0] == 'I' && magic[1] == 'I' && magic[2] == 42 && magic[3] == 0) {
+                return probeTIFF(file, false);
+            } else if (magic[0] == 'M' && magic[1] == 'M' && magic[2] == 0 && magic[3] == 42) {
+                return probeTIFF(file, true);
+            }
+            return null;
+
+        } finally {
+            file.close();
+        }
+    }
+
+    // signature, then the IHDR chunk: length, type, width, height
+    private static int[] probePNG(RandomAccessFile file) throws IOException {
+        file.seek(12);
+        byte[] type = new byte[4];
+        file.readFully(type);
+        if (!new String(type, "US-ASCII").equals("IHDR")) return null;
+
+        return dimensions(file.readInt(), file.readInt());
+    }
+
+    // segments up to the first start of frame (SOFn) marker, which holds the dimensions
+    private static int[] probeJPEG(RandomAccessFile file) throws IOException {
+        file.seek(2);
+
+        while (true) {
+            int b = file.read();
+            if (b < 0) return null;
+            if (b != 0xFF) continue;    // not at a marker, corrupt data is skipped
+
+            int marker = file.read();
+            while (marker == 0xFF) marker = file.read();   // fill bytes
+            if (marker < 0) return null;
+
+            // markers without a segment
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) continue;
+            if (marker == 0xD9 || marker == 0xDA) return null;  // end of image, or scan data without frame header
+
+            int length = file.readUnsignedShort();
+
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                file.skipBytes(1);    // sample precision
+                int height = file.readUnsignedShort();
+                int width = file.readUnsignedShort();
+                return dimensions(width, height);
+            }
+
+            file.seek(file.getFilePointer() + length - 2);
+        }
+    }
+
+    // ImageWidth (256) and ImageLength (257) tags of the first IFD
+    private static int[] probeTIFF(RandomAccessFile file, boolean bigEndian) throws IOException {
+        file.seek(4);
+        long ifd = readInt(file, bigEndian) & 0xFFFFFFFFL;
+        if (ifd + 2 > file.length()) return null;
+
+        file.seek(ifd);
+        int entryCount = readShort(file, bigEndian);
+
+        int width = -1;
+        int height = -1;
+        for (int i = 0; i < entryCount && (width < 0 || height < 0); i++) {
+            int tag = readShort(file, bigEndian);
+            int type = readShort(file, bigEndian);
+            file.skipBytes(4);    // count
+
+            int value;
+            if (type == 3) {    // SHORT, left-justified in the value field
+                value = readShort(file, bigEndian);
+                file.skipBytes(2);
+            } else {            // LONG
+                value = readInt(file, bigEndian);
+            }
+
+            if (tag == 256) width = value;
+            else if (tag == 257) height = value;
+        }
+
+        return dimensions(width, height);
+    }
+
+    private static int[] dimensions(int width, int height) {
+        if (width <= 0 || height <= 0) return null;
+        return new int[] {width, height};
+    }
+
+    private static int readShort(RandomAccessFile file, boolean bigEndian) throws IOException {
+        int b0 = file.read();
+        int b1 = file.read();
+        if ((b0 | b1) < 0) throw new IOException("unexpected end of TIFF header");
+
+        return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+    }
+
+    private static int readInt(RandomAccessFile file, boolean bigEndian) throws IOException {
+        int s0 = readShort(file, bigEndian);
+        int s1 = readShort(file, bigEndian);
+
+        return bigEndian ? (s0 << 16) | s1 : (s1 << 16) | s0;
+    }
+}
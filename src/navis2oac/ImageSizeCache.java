@@ -0,0 +1,181 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pixel dimensions of page scans, see ImageProbe, cached by path and
+ * modification time. With a cache file the results survive the run: every
+ * new probe is appended to the file as a line
+ *
+ * <pre>
+ * path TAB mtime TAB width TAB height
+ * </pre>
+ *
+ * and a later line for a path replaces an earlier one; the file is
+ * rewritten with one line per path when it is loaded with replaced lines. A
+ * batch run probes each scan once; later runs only stat the files. Caches
+ * are shared by all conversions in the process that use the same cache file.
+ *
+ * @author hennieb
+ */
+public class ImageSizeCache {
+
+    private static final Map<File,ImageSizeCache> CACHES = new HashMap<File,ImageSizeCache>();
+
+    private File _cacheFile;
+    private Map<String,long[]> _entries = new HashMap<String,long[]>();
+
+    private ImageSizeCache(File cacheFile) {
+        _cacheFile = cacheFile;
+    }
+
+    /**
+     * @param cacheFile file the cache is kept in, null for a cache that only
+     * lives in memory
+     */
+    public static ImageSizeCache getInstance(File cacheFile) {
+        File key = cacheFile != null ? cacheFile.getAbsoluteFile() : new File("");
+
+        synchronized (CACHES) {
+            ImageSizeCache cache = CACHES.get(key);
+            if (cache == null) {
+                cache = new ImageSizeCache(cacheFile);
+                if (cacheFile != null && cacheFile.exists()) cache.load();
+                CACHES.put(key, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @return {width, height} of the image, or null if it does not exist or
+     * is not a JPEG, PNG or TIFF image
+     */
+    public int[] getDimensions(File image) {
+        String path = image.getAbsolutePath();
+        long modified = image.lastModified();
+        if (modified == 0) return null;   // does not exist
+
+        synchronized (this) {
+            long[] entry = _entries.get(path);
+            if (entry != null && entry[0] == modified) {
+                return new int[] {(int) entry[1], (int) entry[2]};
+            }
+        }
+
+        // probed without the lock, conversions in other threads keep using the cache;
+        // two threads may probe the same scan, the result is the same
+        int[] dimensions;
+        try {
+            dimensions = ImageProbe.getDimensions(image);
+        } catch (IOException ex) {
+            Logger.getLogger(ImageSizeCache.class.getName()).log(Level.WARNING, "cannot read " + image, ex);
+            return null;
+        }
+
+        if (dimensions != null) {
+            synchronized (this) {
+                _entries.put(path, new long[] {modified, dimensions[0], dimensions[1]});
+                append(path, modified, dimensions);
+            }
+        }
+        return dimensions;
+    }
+
+    private void load() {
+        int lines = 0;
+        boolean damaged = false;
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(_cacheFile), "UTF-8"));
+            try {
+                String line = in.readLine();
+                while (line != null) {
+                    lines++;
+                    String[] fields = line.split("\t");
+                    try {
+                        if (fields.length != 4) throw new NumberFormatException(line);
+                        _entries.put(fields[0], new long[] {Long.parseLong(fields[1]),
+                                Long.parseLong(fields[2]), Long.parseLong(fields[3])});
+
+                    } catch (NumberFormatException ex) {  // e.g. by a crash while appending, the other lines are kept
+                        damaged = true;
+                    }
+                    line = in.readLine();
+                }
+            } finally {
+                in.close();
+            }
+
+        } catch (IOException ex) {
+            Logger.getLogger(ImageSizeCache.class.getName()).log(Level.WARNING, "cannot read image size cache " + _cacheFile, ex);
+            return;
+        }
+        if (damaged) {
+            Logger.getLogger(ImageSizeCache.class.getName()).log(Level.WARNING, "damaged lines in image size cache {0} dropped", _cacheFile);
+        }
+
+        // lines replaced by later ones for the same path, or damaged ones, are dropped
+        if (damaged || lines > _entries.size()) compact();
+    }
+
+    // rewrites the cache file with one line per path; appends by other processes meanwhile may be lost,
+    // which only costs a probe
+    private void compact() {
+        try {
+            File temp = File.createTempFile(_cacheFile.getName(), ".tmp", _cacheFile.getAbsoluteFile().getParentFile());
+            try {
+                Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+                try {
+                    for (Map.Entry<String,long[]> entry : _entries.entrySet()) {
+                        long[] value = entry.getValue();
+                        out.write(entry.getKey() + "\t" + value[0] + "\t" + value[1] + "\t" + value[2] + "\n");
+                    }
+                } finally {
+                    out.close();
+                }
+                ArchiveConverter.publish(temp, _cacheFile);
+
+            } catch (IOException ex) {
+                temp.delete();
+                throw ex;
+            }
+
+        } catch (IOException ex) {
+            Logger.getLogger(ImageSizeCache.class.getName()).log(Level.WARNING, "cannot compact image size cache " + _cacheFile, ex);
+        }
+    }
+
+    // called with the lock held, lines of different threads are not interleaved
+    private void append(String path, long modified, int[] dimensions) {
+        if (_cacheFile == null) return;
+
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(_cacheFile, true), "UTF-8");
+            try {
+                out.write(path + "\t" + modified + "\t" + dimensions[0] + "\t" + dimensions[1] + "\n");
+            } finally {
+                out.close();
+            }
+
+        } catch (IOException ex) {
+            Logger.getLogger(ImageSizeCache.class.getName()).log(Level.WARNING, "cannot write image size cache " + _cacheFile, ex);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Navis or line strip input of one conversion.
+ *
+ * @author hennieb
+ */
+public abstract class InputSource {
+
+    private String name;
+
+    protected InputSource(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Input read from a file, plain or gzipped (.gz).
+     */
+    public static InputSource fromFile(final File file) {
+        return new InputSource(file.getPath()) {
+            public InputStream openStream() throws IOException {
+                return ArchiveConverter.openInput(file.getPath());
+            }
+        };
+    }
+
+    /**
+     * Input read from a stream. The stream is read to its end and closed by
+     * the conversion.
+     */
+    public static InputSource fromStream(final InputStream input, String name) {
+        return new InputSource(name) {
+            public InputStream openStream() {
+                return input;
+            }
+        };
+    }
+
+    /**
+     * @return name of the input, for messages
+     */
+    public String getName() {
+        return name;
+    }
+
+    public abstract InputStream openStream() throws IOException;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end load test: converts all files in a directory, for instance a
+ * corpus from CorpusGenerator, on a number of threads, and reports throughput,
+ * conversion latency percentiles and peak memory. The output is serialized
+ * as usual but discarded, unless an output directory is given. Usage:
+ *
+ * <pre>
+ * LoadTest --inputdir=&lt;directory&gt; [--outputdir=&lt;directory&gt;] [--repeat=1] [--warmup=1]
+ *     [conversion options, see ConversionOptions]
+ * </pre>
+ *
+ * The warmup passes are not measured. --threads sets the number of
+ * concurrent conversions; each conversion itself runs single threaded.
+ *
+ * @author hennieb
+ */
+public class LoadTest {
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    private File[] _inputs;
+    private File _outputDir;
+    private int _repeat = 1;
+    private int _warmup = 1;
+    private int _threads;
+    private Converter _converter;
+
+    // nanoseconds per measured conversion
+    private List<Long> _latencies = Collections.synchronizedList(new ArrayList<Long>());
+    private AtomicInteger _failures = new AtomicInteger();
+    // input bytes of the measured conversions that succeeded
+    private AtomicLong _inputBytes = new AtomicLong();
+
+    public static void main(String[] args) {
+        try {
+            new LoadTest(args).run();
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException for illegal arguments
+     */
+    public LoadTest(String[] args) {
+        File inputDir = null;
+        List<String> optionArgs = new ArrayList<String>();
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf("=") + 1);
+
+            try {
+                if (arg.startsWith("--inputdir=")) {
+                    inputDir = new File(value);
+                } else if (arg.startsWith("--outputdir=")) {
+                    _outputDir = new File(value);
+                } else if (arg.startsWith("--repeat=")) {
+                    _repeat = Integer.parseInt(value);
+                } else if (arg.startsWith("--warmup=")) {
+                    _warmup = Integer.parseInt(value);
+                } else {
+                    optionArgs.add(arg);
+                }
+
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Illegal argument: " + arg);
+            }
+        }
+
+        if (inputDir == null) throw new IllegalArgumentException("--inputdir=<directory> is required");
+
+        // page files only, as in an archive
+        _inputs = inputDir.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && !ArchiveConverter.isHidden(file.getName());
+            }
+        });
+        if (_inputs == null || _inputs.length == 0) throw new IllegalArgumentException("no input files in " + inputDir);
+        Arrays.sort(_inputs);
+
+        // concurrency comes from converting several files at once
+        ConversionOptions options = ConversionOptions.fromArgs(optionArgs.toArray(new String[optionArgs.size()]));
+        _threads = options.getThreads();
+        _converter = new Converter(options.toBuilder().setThreads(1).build());
+
+        if (_outputDir != null) _outputDir.mkdirs();
+    }
+
+    public void run() throws InterruptedException {
+        for (int i = 0; i < _warmup; i++) {
+            runPass(false);
+        }
+        _latencies.clear();
+        _failures.set(0);
+        _inputBytes.set(0);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < _repeat; i++) {
+            runPass(true);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        report(elapsed);
+    }
+
+    private void runPass(final boolean measured) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+
+        for (final File input : _inputs) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        _converter.convert(InputSource.fromFile(input), getOutput(input));
+                        if (measured) {
+                            _latencies.add(System.nanoTime() - start);
+                            _inputBytes.addAndGet(input.length());
+                        }
+
+                    } catch (ConversionException ex) {
+                        _failures.incrementAndGet();
+                        System.err.println("conversion of " + input + " failed: " + ex.getMessage());
+                    } catch (RuntimeException ex) {   // counted as well, the pool thread would only print it
+                        _failures.incrementAndGet();
+                        System.err.println("conversion of " + input + " failed: " + ex);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+    }
+
+    private RDFSink getOutput(File input) {
+        if (_outputDir == null) return RDFSink.toStream(DISCARD);
+        else return RDFSink.toFile(new File(_outputDir, ArchiveConverter.getBaseName(input.getName()) + ".rdf"));
+    }
+
+    private void report(long elapsed) {
+        long inputBytes = _inputBytes.get();
+        List<Long> latencies = new ArrayList<Long>(_latencies);
+        Collections.sort(latencies);
+        double seconds = elapsed / 1e9;
+
+        System.out.println(String.format("conversions     %d (%d failed), %d threads",
+                latencies.size(), _failures.get(), _threads));
+        System.out.println(String.format("throughput      %.1f files/s, %.2f MB/s input",
+                latencies.size() / seconds, inputBytes / seconds / (1024 * 1024)));
+        System.out.println(String.format("latency ms      p50 %.1f  p90 %.1f  p99 %.1f  max %.1f",
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99), percentile(latencies, 100)));
+        System.out.println(String.format("peak memory     %s", getPeakMemory()));
+    }
+
+    private static double percentile(List<Long> sorted, int percentile) {
+        if (sorted.isEmpty()) return 0;
+
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    // resident set high water mark where the OS reports it (Linux), peak heap otherwise
+    private static String getPeakMemory() {
+        File status = new File("/proc/self/status");
+        if (status.exists()) {
+            try {
+                BufferedReader in = new BufferedReader(new FileReader(status));
+                try {
+                    String line = in.readLine();
+                    while (line != null) {
+                        if (line.startsWith("VmHWM:")) return line.substring(6).trim() + " RSS";
+                        line = in.readLine();
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                // fall back to the heap
+            }
+        }
+
+        long peakHeap = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getPeakUsage() != null) peakHeap += pool.getPeakUsage().getUsed();
+        }
+        return (peakHeap / 1024) + " kB heap and non-heap";
+    }
+}
@@ -7,12 +7,12 @@ package navis2oac;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,6 +29,7 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
+import org.openrdf.OpenRDFException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -60,15 +61,7 @@ public class Navis2OAC {
     private static final String PAGESEPARATOR = " ";
     private static final int PAGESEPARATOR_LENGTH = 1;
 
-    // keys for arguments in argumentMap
-    private static final String INPUTFILE = "input";
-    private static final String OUTPUTFILE = "output";
-    private static final String XOFFSET = "x";
-    private static final String YOFFSET = "y";
-    private static final String XCANVAS = "xcanvas";
-    private static final String YCANVAS = "ycanvas";
-    private static final String SCALING_FACTOR = "scalefactor";
-    private static final String LINE_STRIP_FORMAT = "line_strip_format";
+    private static final String[] SCAN_EXTENSIONS = {".jpg", ".jpeg", ".png", ".tif", ".tiff"};
 
     // for use by line strip cutout service
     private int _scanWidth = 0;
@@ -79,9 +72,17 @@ public class Navis2OAC {
 
     private SesameStore _sesameStore;
 
-    private Map<String,String> _arguments = new HashMap<String,String>();
+    private ConversionOptions _options;
 
-    private List<Map<String,String>> _navisAnnotations;
+    // canvas size from the options, or from the line strip block
+    private Integer _canvasWidth;
+    private Integer _canvasHeight;
+
+    // annotations of the previous and of this conversion, with a snapshot file only
+    private PageSnapshot _previousSnapshot;
+    private PageSnapshot _snapshot;
+
+    private List<Map<String,String>> _navisAnnotations = new ArrayList<Map<String,String>>();
     private TreeSet<Line> _orderedLinesForPage = new TreeSet<Line>();
     private Map<String,TreeSet<TextSegment>> _orderedWordsForLines = new HashMap<String,TreeSet<TextSegment>>();
     private Map<String,TextSegment> _segmentsForLines = new HashMap<String,TextSegment>();
@@ -90,148 +91,533 @@ public class Navis2OAC {
     private String _pageID;
     private String _blockID;
 
+    // navis records or line strips read, for the conversion events
+    private int _recordCount = 0;
+    private ConversionEvents _events = ConversionEvents.getInstance();
+
+    // line strip parsers, kept for the next conversion on the same thread
+    private DocumentBuilder _documentBuilder;
+    private XPath _xpath;
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        new Navis2OAC().startConversion(args);
+        try {
+            startConversion(args);
+
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        } catch (ConversionException ex) {
+            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, ex.getMessage(), ex);
+            System.exit(1);
+        }
     }
 
-    public void startConversion(String[] args) {
-        File outputFile = null;
+    /**
+     * Conversion from the command line: --inputfile=<filename> and
+     * --outputfile=<filename> (stdout if absent, gzipped if it ends with
+     * .gz), --resume to continue an interrupted archive conversion, --watch to
+     * convert the files dropped into the input directory (see HotFolder),
+     * --mergescans to convert a directory or archive of line strip cutouts
+     * to one output per scan (see ScanConverter), --writemanifest to write the
+     * IIIF manifest of --iiifdir after the conversion, or without
+     * --inputfile to only write the manifest, the other arguments are the
+     * conversion options, see ConversionOptions.
+     *
+     * @throws IllegalArgumentException for illegal arguments
+     */
+    public static void startConversion(String[] args) throws ConversionException {
+        String inputFile = null;
+        String outputFile = null;
+        boolean resume = false;
+        boolean watch = false;
+        boolean mergeScans = false;
+        boolean writeManifest = false;
+        List<String> optionArgs = new ArrayList<String>();
+
+        for (String arg : args) {
+            if (arg.startsWith("--inputfile=")) {
+                inputFile = arg.substring(arg.indexOf("=") + 1);
+            } else if (arg.startsWith("--outputfile=")) {
+                outputFile = arg.substring(arg.indexOf("=") + 1);
+            } else if (arg.equals("--resume")) {
+                resume = true;
+            } else if (arg.equals("--watch")) {
+                watch = true;
+            } else if (arg.equals("--mergescans")) {
+                mergeScans = true;
+            } else if (arg.equals("--writemanifest")) {
+                writeManifest = true;
+            } else {
+                optionArgs.add(arg);
+            }
+        }
+
+        ConversionOptions options = ConversionOptions.fromArgs(optionArgs.toArray(new String[optionArgs.size()]));
 
-        _navisAnnotations = new ArrayList();
-        _sesameStore = new SesameStore();
+        if (writeManifest && options.getIiifDir() == null) {
+            throw new IllegalArgumentException("--iiifdir=<directory> is required for --writemanifest");
+        }
 
-        // process arguments (including input file name(s) )
-        processArgs(args);
+        // manifest of the pages converted so far, one page at a time
+        if (writeManifest && inputFile == null) {
+            writeManifest(options);
+            return;
+        }
 
-        // read and parse input file(s)
-        String outputFileName = _arguments.get(OUTPUTFILE);
-        if (outputFileName != null) {
-            outputFile = new File(outputFileName);
-            if (!outputFile.exists()) {
-                try {
-                    boolean success = outputFile.createNewFile();
-                } catch (IOException ex) {
-                    Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
-                }
+        if (inputFile == null) {
+            throw new IllegalArgumentException("--inputfile=<filename> is required");
+        }
+
+        // directory of page files, converted as they arrive until the process is stopped;
+        // a watch always continues where the previous one stopped
+        if (watch) {
+            if (outputFile == null) {
+                throw new IllegalArgumentException("--outputfile=<directory> is required for --watch");
             }
+            if (options.getSnapshotFile() != null) {   // a snapshot holds one page
+                throw new IllegalArgumentException("--snapshot cannot be combined with --watch");
+            }
+
+            new HotFolder(options, new File(inputFile), new File(outputFile)).run();
+            return;
+        }
+
+        // directory or archive of line strip cutouts: the blocks of each scan are
+        // converted in parallel into one output file per scan
+        if (mergeScans) {
+            if (outputFile == null) {
+                throw new IllegalArgumentException("--outputfile=<directory> is required for --mergescans");
+            }
+            if (watch || resume) {
+                throw new IllegalArgumentException("--mergescans cannot be combined with --watch or --resume");
+            }
+
+            new ScanConverter(options).convert(new File(inputFile), new File(outputFile));
+            return;
+        }
+
+        // archive of page files: entries are converted in parallel, one output file per entry
+        if (ArchiveConverter.isArchive(inputFile)) {
+            if (outputFile == null) {
+                throw new IllegalArgumentException("--outputfile=<directory> is required for archive input");
+            }
+            if (options.getSnapshotFile() != null) {   // a snapshot holds one page
+                throw new IllegalArgumentException("--snapshot cannot be combined with archive input");
+            }
+
+            ArchiveConverter archiveConverter = new ArchiveConverter(options);
+            archiveConverter.setResume(resume);
+            archiveConverter.convert(new File(inputFile), new File(outputFile));
+            return;
+        }
+
+        if (resume) {
+            throw new IllegalArgumentException("--resume is only possible for archive input");
+        }
+
+        RDFSink output;
+        if (outputFile == null) {
+            output = RDFSink.toStdout();
+        } else if (outputFile.toLowerCase().endsWith(".gz")) {
+            output = RDFSink.toGzipFile(new File(outputFile), options.getThreads());
+        } else {
+            output = RDFSink.toFile(new File(outputFile));
+        }
+
+        new Converter(options).convert(InputSource.fromFile(new File(inputFile)), output);
+
+        // the manifest holds all canvases, so it is not rewritten for every single page
+        if (writeManifest) writeManifest(options);
+    }
+
+    private static void writeManifest(ConversionOptions options) throws ConversionException {
+        try {
+            IiifManifest.write(options.getIiifDir());
+        } catch (IOException ex) {
+            throw new ConversionException("cannot write IIIF manifest", ex);
         }
+    }
 
-        String inputFile = _arguments.get(INPUTFILE);
+    /**
+     * Converts one navis or line strip page. Working state is left behind in
+     * this object, call reset before the next conversion.
+     */
+    void convert(ConversionOptions options, InputSource input, RDFSink output) throws ConversionException {
+        _options = options;
+        _canvasWidth = options.getCanvasWidth();
+        _canvasHeight = options.getCanvasHeight();
 
-        if (inputFile != null) {
-            String lineStrips = _arguments.get(LINE_STRIP_FORMAT);
+        ConversionEvents.Event pageEvent = _events.beginPage(input.getName());
+        InputStream in = null;
+        try {
+            in = input.openStream();
 
-            if (lineStrips != null && lineStrips.equals("true")) {
-                parseLineStripFile(inputFile);
+            // persistent store if requested, shared by the conversions in this process,
+            // pages are replaced in it graph by graph; otherwise nothing is queried,
+            // a triple buffer is enough
+            if (options.getStoreDir() != null) {
+                _sesameStore = SesameStore.open(options.getStoreDir());
             } else {
-                parseInputFile(inputFile);
+                _sesameStore = new SesameStore(new TripleBuffer());
+            }
+
+            // with a memory budget, navis input is converted line by line from a disk backed spool
+            if (options.getMaxMemory() > 0 && !options.isLineStrips()) {
+                startBoundedConversion(in, output, options.getMaxMemory() * 1024 * 1024);
+            } else {
+                convertInMemory(in, output);
+            }
+
+        } catch (IOException ex) {
+            throw new ConversionException("conversion of " + input + " failed", ex);
+        } catch (OpenRDFException ex) {
+            throw new ConversionException("conversion of " + input + " failed", ex);
+        } catch (IllegalArgumentException ex) {     // includes NumberFormatException
+            throw new ConversionException("malformed input in " + input, ex);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
+            pageEvent.end(_pageID, _recordCount, getTripleCount());
         }
+    }
+
+    private void convertInMemory(InputStream input, RDFSink output)
+            throws IOException, OpenRDFException, ConversionException {
+        ConversionEvents.Event event = _events.beginPhase(ConversionEvents.PARSE);
+        if (_options.isLineStrips()) {
+            parseLineStripStream(input);
+        } else {
+            parseInputStream(input);
+        }
+        _recordCount = _navisAnnotations.size();
+        if (_pageID == null && _recordCount > 0) _pageID = _navisAnnotations.get(0).get(NAVIS_PAGE_ID);
+        endPhase(event);
 
         // determine line and word order, text offsets, line and page texts and rects
+        event = _events.beginPhase(ConversionEvents.DERIVE);
         deriveImplicitInformation();
+        endPhase(event);
 
         // apply possible pixel offset to line and word zone regions
-        applyOffsets(_arguments.get(XOFFSET), _arguments.get(YOFFSET));
+        event = _events.beginPhase(ConversionEvents.TRANSFORM);
+        applyOffsets(_options.getXOffset(), _options.getYOffset());
 
         // apply overall scaling factor to spatial coordinates
-        applyScaling(_arguments.get(SCALING_FACTOR));
-
-        // set Canvas dimensions from arguments, if present. Otherwise keep estimate as
-        // set in 'deriveImplicitInformation
-        setCanvasDimensions(_arguments.get(XCANVAS), _arguments.get(YCANVAS), _arguments.get(SCALING_FACTOR));
+        applyScaling(_options.getScaleFactor());
+
+        // set Canvas dimensions from arguments or page scan, if present. Otherwise keep
+        // estimate as set in 'deriveImplicitInformation
+        if (!_options.isLineStrips()) probeCanvasDimensions();
+        setCanvasDimensions(_canvasWidth, _canvasHeight, _options.getScaleFactor());
+        endPhase(event);
+
+        // create triples and add them to the RDF store, in the named graph of this page;
+        // annotations in the snapshot of the previous conversion keep their URIs
+        event = _events.beginPhase(ConversionEvents.TRIPLES);
+        if (_options.getSnapshotFile() != null) {
+            _previousSnapshot = PageSnapshot.load(_options.getSnapshotFile());
+            _snapshot = new PageSnapshot();
+        }
+        _sesameStore.startGraph(getPageGraphURI());
 
-        // create triples and add them to the RDF store
-        String lineStrips = _arguments.get(LINE_STRIP_FORMAT);
-        if (lineStrips != null && lineStrips.equals("true")) { 
+        if (_options.isLineStrips()) {
             addTriplesToStoreLS();
         } else {
             addTriplesToStore();
         }
 
+        _sesameStore.commitGraph();
+        endPhase(event);
+
+        // write lookup index next to the RDF output
+        event = _events.beginPhase(ConversionEvents.INDEX);
+        if (_options.getIndexFile() != null) {
+            buildAnnotationIndex().write(_options.getIndexFile());
+        }
+
+        // add words of this page to the full text index
+        if (_options.getTextIndex() != null) {
+            TextIndexWriter textIndexWriter = new TextIndexWriter(_options.getTextIndex());
+            for (Line l : _orderedLinesForPage) {
+                addLineToTextIndex(textIndexWriter, l);
+            }
+            textIndexWriter.flush();
+        }
+
+        // static IIIF annotation list and canvas of this page
+        if (_options.getIiifDir() != null) {
+            URI canvasURI = URI.create(SesameStore.CATCHPLUS + _pageID);
+            AnnotationListWriter list = startAnnotationList(canvasURI);
+            try {
+                for (Line l : _orderedLinesForPage) {
+                    addLineToAnnotationList(list, l);
+                }
+                list.close();
+            } catch (IOException ex) {
+                list.abort();
+                throw ex;
+            } catch (RuntimeException ex) {
+                list.abort();
+                throw ex;
+            }
+            writeCanvas(canvasURI);
+        }
+        endPhase(event);
+
+        // replace the graph of this page in a remote store, and
         // export OA graph to RDF/XML file (or output format?)
-        if (outputFile != null && outputFile.exists()) {
-            _sesameStore.exportToRDFXML(outputFile);
-        } else {
-            _sesameStore.exportToRDFXML(null);
+        event = _events.beginPhase(ConversionEvents.EXPORT);
+        if (_options.getGraphStore() != null) {
+            _sesameStore.putGraph(_options.getGraphStore());
+        }
+
+        _sesameStore.exportToRDFXML(output, _options.getThreads());
+
+        // changes since the previous conversion, then this conversion becomes the previous one
+        if (_options.getDeltaFile() != null) {
+            SparqlDelta.write(_options.getDeltaFile(), getPageGraphURI(), _previousSnapshot, _snapshot, _sesameStore);
+        }
+        if (_snapshot != null) {
+            _snapshot.write(_options.getSnapshotFile());
         }
+        endPhase(event);
     }
 
+    /**
+     * Converts one line strip block of a scan, for ScanConverter: the region
+     * of the block and its line strips are added to blockTriples, on the
+     * canvas of the scan. The canvas and the image annotation of the scan are
+     * left to the caller, see addScanTriples. Call reset before the next
+     * conversion; blockTriples is not cleared by it.
+     */
+    void convertBlock(ConversionOptions options, InputSource input, TripleBuffer blockTriples) throws ConversionException {
+        _options = options;
+        _canvasWidth = options.getCanvasWidth();
+        _canvasHeight = options.getCanvasHeight();
 
-    public void processArgs(String[] args) {
-        List<String> inputArgs = new ArrayList<String>();
-        inputArgs.addAll(Arrays.asList(args));
+        ConversionEvents.Event pageEvent = _events.beginPage(input.getName());
+        InputStream in = null;
+        try {
+            in = input.openStream();
+            _sesameStore = new SesameStore(blockTriples);
 
-        // argument syntax:
-        // --inputfile=<filename>
-        // --xoffset=<numpixels>
-        // --yoffset=<numpixels>
-        // --xcanvas=<numpixels>
-        // --ycanvas=<numpixels>
-        // --scalefactor=<scalefactor> , scale DOWN by ...
-        // --linestrips
-        // --outputfile=<filename>
+            ConversionEvents.Event event = _events.beginPhase(ConversionEvents.PARSE);
+            parseLineStripStream(in);
+            _recordCount = _navisAnnotations.size();
+            endPhase(event);
 
-        for (String arg : inputArgs) {
-            if (arg.startsWith("--inputfile=")) {
-                _arguments.put(INPUTFILE, arg.substring(arg.indexOf("=") + 1));
-         //       System.out.println(file.substring(file.indexOf("=") + 1));
-            } else if (arg.startsWith("--outputfile=")) {
-                _arguments.put(OUTPUTFILE, arg.substring(arg.indexOf("=") + 1));
-            } else if (arg.startsWith("--xoffset=")) {
-                _arguments.put(XOFFSET, arg.substring(arg.indexOf("=") + 1));
-         //       System.out.println(file.substring(file.indexOf("=") + 1));
-            } else if (arg.startsWith("--yoffset=")) {
-                _arguments.put(YOFFSET, arg.substring(arg.indexOf("=") + 1));
-         //       System.out.println(file.substring(file.indexOf("=") + 1));
-            } else if (arg.startsWith("--xcanvas=")) {
-                _arguments.put(XCANVAS, arg.substring(arg.indexOf("=") + 1));
-         //      System.out.println(file.substring(file.indexOf("=") + 1));
-            } else if (arg.startsWith("--ycanvas=")) {
-                _arguments.put(YCANVAS, arg.substring(arg.indexOf("=") + 1));
-         //       System.out.println(file.substring(file.indexOf("=") + 1));
-            } else if (arg.startsWith("--scalefactor")) {
-                _arguments.put(SCALING_FACTOR, arg.substring(arg.indexOf("=") + 1));
-            } else if (arg.startsWith("--linestrips")) {
-                _arguments.put(LINE_STRIP_FORMAT, "true");
-            } else {
-                System.err.println("Illegal argument");
-                System.exit(1);
+            event = _events.beginPhase(ConversionEvents.DERIVE);
+            deriveImplicitInformation();
+            endPhase(event);
+
+            event = _events.beginPhase(ConversionEvents.TRANSFORM);
+            applyOffsets(_options.getXOffset(), _options.getYOffset());
+            applyScaling(_options.getScaleFactor());
+            setCanvasDimensions(_canvasWidth, _canvasHeight, _options.getScaleFactor());
+            endPhase(event);
+
+            event = _events.beginPhase(ConversionEvents.TRIPLES);
+            addBlockTriplesLS(getScanCanvasURI(_pageID));
+            endPhase(event);
+
+        } catch (IOException ex) {
+            throw new ConversionException("conversion of " + input + " failed", ex);
+        } catch (IllegalArgumentException ex) {     // includes NumberFormatException
+            throw new ConversionException("malformed input in " + input, ex);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+                }
             }
+            pageEvent.end(_pageID, _recordCount, getTripleCount());
+
+            // the triples belong to the caller, reset must not clear them
+            _sesameStore = null;
         }
     }
 
-    public void parseInputFile(String inputFileName) {
-        BufferedReader br = null;
+    /**
+     * @return page image (page_image_original) of the last line strip block
+     */
+    String getPageImage() {
+        return _pageID;
+    }
 
-        try {
-            br = new BufferedReader(new FileReader(inputFileName));
+    int getScanWidth() {
+        return _scanWidth;
+    }
 
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+    int getScanHeight() {
+        return _scanHeight;
+    }
+
+    private void endPhase(ConversionEvents.Event event) {
+        event.end(_pageID, _recordCount, getTripleCount());
+    }
+
+    private int getTripleCount() {
+        return _sesameStore != null ? _sesameStore.getTripleCount() : 0;
+    }
+
+    /**
+     * Clears the working state of the last conversion; collections and parsers
+     * are kept for reuse.
+     */
+    void reset() {
+        if (_sesameStore != null) {
+            _sesameStore.close();
+            _sesameStore = null;
         }
 
-        if (br != null) {
-            String line = null;
-            try {
-                line = br.readLine();
-                while (line != null) {
-                    parseLine(line);
-                    line = br.readLine();
-                }
+        _options = null;
+        _canvasWidth = null;
+        _canvasHeight = null;
+        _previousSnapshot = null;
+        _snapshot = null;
+        _scanWidth = 0;
+        _scanHeight = 0;
+        _rotationAngle = 0;
+        _xOrigin = 0;
+        _yOrigin = 0;
+        _pageID = null;
+        _blockID = null;
+        _recordCount = 0;
+
+        _navisAnnotations.clear();
+        clearSegments();
+    }
 
-                br.close();
+    /**
+     * Lookup index over the segments of the page being converted, with their
+     * final (offset and scaled) coordinates.
+     */
+    private AnnotationIndex buildAnnotationIndex() {
+        AnnotationIndex.Builder builder = new AnnotationIndex.Builder();
 
-            } catch (IOException ex) {
-                Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+        addPageToIndex(builder);
+        for (Line l : _orderedLinesForPage) {
+            addLineToIndex(builder, l);
+        }
+
+        return builder.build();
+    }
+
+    private void addPageToIndex(AnnotationIndex.Builder builder) {
+        TextSegment seg = _textSegments.get(_pageID);
+
+        if (seg != null) {
+            builder.add(new AnnotationIndex.Annotation(AnnotationIndex.KIND_PAGE, _pageID, null, _pageID,
+                    seg.textOffset, seg.textRange, seg.x, seg.y, seg.w, seg.h));
+        }
+    }
+
+    private void addLineToIndex(AnnotationIndex.Builder builder, Line l) {
+        TextSegment lineSeg = _textSegments.get(l.lineID);
+
+        if (lineSeg != null) {
+            builder.add(new AnnotationIndex.Annotation(AnnotationIndex.KIND_LINE, l.lineID, l.lineID, _pageID,
+                    lineSeg.textOffset, lineSeg.textRange, lineSeg.x, lineSeg.y, lineSeg.w, lineSeg.h));
+        }
+
+        if (_orderedWordsForLines.get(l.lineID) != null) {
+            for (TextSegment wSeg : _orderedWordsForLines.get(l.lineID)) {
+                builder.add(new AnnotationIndex.Annotation(AnnotationIndex.KIND_WORDZONE, wSeg.navisRecord.get(NAVIS_ID), l.lineID, _pageID,
+                        wSeg.textOffset, wSeg.textRange, wSeg.x, wSeg.y, wSeg.w, wSeg.h));
+            }
+        }
+    }
+
+    // a word is indexed once: by its word zone, or by the line if it has no word zones
+    private void addLineToTextIndex(TextIndexWriter writer, Line l) throws IOException {
+        if (_orderedWordsForLines.get(l.lineID) != null) {
+            for (TextSegment wSeg : _orderedWordsForLines.get(l.lineID)) {
+                writer.addSegment(_pageID, wSeg.navisRecord.get(NAVIS_ID), wSeg.text, wSeg.textOffset, wSeg.x, wSeg.y, wSeg.w, wSeg.h);
+            }
+            return;
+        }
+
+        TextSegment lineSeg = _textSegments.get(l.lineID);
+        if (lineSeg != null) {
+            writer.addSegment(_pageID, l.lineID, lineSeg.text, lineSeg.textOffset, lineSeg.x, lineSeg.y, lineSeg.w, lineSeg.h);
+        }
+    }
+
+    private AnnotationListWriter startAnnotationList(URI canvasURI) throws IOException {
+        return new AnnotationListWriter(IiifManifest.getListFile(_options.getIiifDir(), _pageID),
+                IiifManifest.getListURI(_pageID), canvasURI.toString());
+    }
+
+    // after addTriplesForLine, the IIIF annotations have the URIs of the annotations in the RDF
+    private void addLineToAnnotationList(AnnotationListWriter list, Line l) throws IOException {
+        TextSegment lineSeg = _textSegments.get(l.lineID);
+
+        if (lineSeg != null && lineSeg.text != null && lineSeg.annotationURI != null) {
+            list.add(lineSeg.annotationURI.toString(), lineSeg.text, lineSeg.x, lineSeg.y, lineSeg.w, lineSeg.h);
+        }
+
+        if (_orderedWordsForLines.get(l.lineID) != null) {
+            for (TextSegment wSeg : _orderedWordsForLines.get(l.lineID)) {
+                if (wSeg.text == null || wSeg.annotationURI == null) continue;
+                list.add(wSeg.annotationURI.toString(), wSeg.text, wSeg.x, wSeg.y, wSeg.w, wSeg.h);
             }
         }
     }
 
-    private void parseLine(String line) {
+    // canvas of the page for the IIIF manifest, the image is the one of the image annotation
+    private void writeCanvas(URI canvasURI) throws IOException {
+        TextSegment seg = _textSegments.get(_pageID);
+
+        IiifManifest.writeCanvas(_options.getIiifDir(), _pageID, canvasURI.toString(), seg.w, seg.h,
+                SesameStore.CATCHPLUS + _pageID + ".jpg");
+    }
+
+    /**
+     * Named graph for the annotations of one page, or of one line strip block.
+     * The URI only depends on the page (and block position), so converting a
+     * page again replaces the graph of the earlier conversion.
+     */
+    private URI getPageGraphURI() {
+        if (_options.isLineStrips()) {
+            String blockKey = _pageID + "/" + _xOrigin + "-" + _yOrigin;
+            return URI.create(SesameStore.CATCHPLUS + "graph/" + UUID.nameUUIDFromBytes(blockKey.getBytes()));
+        } else {
+            return URI.create(SesameStore.CATCHPLUS + "graph/" + _pageID);
+        }
+    }
+
+    public void parseInputFile(String inputFileName) {
+        try {
+            parseInputStream(new FileInputStream(inputFileName));
+
+        } catch (IOException ex) {
+            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    public void parseInputStream(InputStream input) throws IOException {
+        BufferedReader br = new BufferedReader(new InputStreamReader(input));
+
+        String line = br.readLine();
+        while (line != null) {
+            _navisAnnotations.add(parseLine(line));
+            line = br.readLine();
+        }
+
+        br.close();
+    }
+
+    private Map<String,String> parseLine(String line) {
         Map<String,String> navisRecord = new HashMap<String,String>();
         String id = null;
 
@@ -303,128 +689,250 @@ public class Navis2OAC {
             navisRecord.put(NAVIS_TIME, line.substring(start + 6, end));
         }
 
-        _navisAnnotations.add(navisRecord);
+        return navisRecord;
     }
 
-    public void parseLineStripFile(String inputFileName) {
-    //    System.out.println("processing: " + inputFileName);
+    /**
+     * Conversion of navis input with a bounded heap. Parsed records are kept in a
+     * RecordSpool that spills sorted runs to disk; the merged runs deliver the
+     * records line by line, so that derivation and triple generation only need
+     * one line in memory at a time. Triples are streamed to the output instead of
+     * collected in the RDF store. Only the full page text is kept in memory.
+     */
+    private void startBoundedConversion(InputStream input, RDFSink output, long maxBytes)
+            throws IOException, OpenRDFException {
+        // parsed records get half the budget, the rest is headroom for the current line and output
+        RecordSpool spool = new RecordSpool(maxBytes / 2);
+        try {
+            ConversionEvents.Event event = _events.beginPhase(ConversionEvents.PARSE);
+            BufferedReader br = new BufferedReader(new InputStreamReader(input));
 
-        Document doc = null;
-        DocumentBuilder builder = null;
+            String line = br.readLine();
+            while (line != null) {
+                Map<String,String> navisRecord = parseLine(line);
 
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        factory.setNamespaceAware(true); // never forget this!
+                if (_pageID == null) _pageID = navisRecord.get(NAVIS_PAGE_ID);
+                spool.add(new Line(getGlobalLineID(navisRecord)).getLineNumber(), navisRecord);
+                _recordCount++;
 
-        try {
-            builder = factory.newDocumentBuilder();
+                line = br.readLine();
+            }
 
-        } catch (ParserConfigurationException ex) {
-            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+            br.close();
+
+            endPhase(event);
+
+            event = _events.beginPhase(ConversionEvents.STREAM);
+            convertSpooledLines(spool, output);
+            endPhase(event);
+
+        } finally {
+            spool.close();
         }
+    }
 
-        XPathFactory xPathFactory = XPathFactory.newInstance();
-        XPath xpath = xPathFactory.newXPath();
+    private void convertSpooledLines(RecordSpool spool, RDFSink output) throws IOException, OpenRDFException {
+        _sesameStore.startStreaming(output);
+
+        URI canvasURI = URI.create(SesameStore.CATCHPLUS + _pageID);
+        URI fullTextBodyURI = URI.create("urn:uuid:" + UUID.randomUUID());
+        PageText page = new PageText();
+        AnnotationIndex.Builder indexBuilder = new AnnotationIndex.Builder();
+        TextIndexWriter textIndexWriter = null;
+        if (_options.getTextIndex() != null) textIndexWriter = new TextIndexWriter(_options.getTextIndex());
+        AnnotationListWriter list = null;
+        if (_options.getIiifDir() != null) list = startAnnotationList(canvasURI);
 
-        // read and parse line strip XML input file
         try {
-            doc = builder.parse(inputFileName);
+            // records arrive ordered by line number, in input order within a line
+            RecordSpool.Reader records = spool.open();
+            Map<String,String> navisRecord = records.next();
+
+            while (navisRecord != null) {
+                clearSegments();
+
+                int lineNumber = new Line(getGlobalLineID(navisRecord)).getLineNumber();
+                while (navisRecord != null && new Line(getGlobalLineID(navisRecord)).getLineNumber() == lineNumber) {
+                    processRecord(navisRecord);
+                    navisRecord = records.next();
+                }
+
+                Line l = _orderedLinesForPage.first();
+                deriveLineInformation(l, page);
+
+                applyOffsets(_options.getXOffset(), _options.getYOffset());
+                applyScaling(_options.getScaleFactor());
+
+                addTriplesForLine(l, canvasURI, fullTextBodyURI);
+                if (_options.getIndexFile() != null) addLineToIndex(indexBuilder, l);
+                if (textIndexWriter != null) addLineToTextIndex(textIndexWriter, l);
+                if (list != null) addLineToAnnotationList(list, l);
+            }
+
+            if (textIndexWriter != null) textIndexWriter.flush();
+            if (list != null) list.close();
+
+            // page segment last, its text and extent are known only after all lines
+            clearSegments();
+            _textSegments.put(_pageID, page.createSegment());
+
+            applyOffsets(_options.getXOffset(), _options.getYOffset());
+            applyScaling(_options.getScaleFactor());
+            probeCanvasDimensions();
+            setCanvasDimensions(_canvasWidth, _canvasHeight, _options.getScaleFactor());
+
+            addTriplesForPage(canvasURI, URI.create("urn:uuid:" + UUID.randomUUID()), fullTextBodyURI,
+                    URI.create("urn:uuid:" + UUID.randomUUID()));
+
+            _sesameStore.endStreaming();
+
+            if (_options.getIndexFile() != null) {
+                addPageToIndex(indexBuilder);
+                indexBuilder.build().write(_options.getIndexFile());
+            }
+            if (_options.getIiifDir() != null) writeCanvas(canvasURI);
 
-        } catch (SAXException ex) {
-            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
         } catch (IOException ex) {
-            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+            if (list != null) list.abort();
+            throw ex;
+        } catch (OpenRDFException ex) {
+            if (list != null) list.abort();
+            throw ex;
+        } catch (RuntimeException ex) {
+            if (list != null) list.abort();
+            throw ex;
         }
+    }
 
-        extractInfoFromXML(doc, xpath);
+    private void clearSegments() {
+        _orderedLinesForPage.clear();
+        _orderedWordsForLines.clear();
+        _segmentsForLines.clear();
+        _textSegments.clear();
     }
 
-    public void extractInfoFromXML(Document doc, XPath xpath) {
+    public void parseLineStripFile(String inputFileName) {
+    //    System.out.println("processing: " + inputFileName);
+
+        try {
+            parseLineStripStream(new FileInputStream(inputFileName));
 
+        } catch (IOException ex) {
+            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (ConversionException ex) {
+            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    public void parseLineStripStream(InputStream input) throws IOException, ConversionException {
         try {
-            // retrieve page_image
-            XPathExpression expr = xpath.compile("//start_process_cutout");
-            Object result = expr.evaluate(doc, XPathConstants.NODESET);
-            NodeList nodes = (NodeList) result;
-
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Node n = nodes.item(i);
-
-                // get elements from XML
-                NodeList topElements = (NodeList) n.getChildNodes();
-
-                for (int j= 0; j < topElements.getLength(); j++) {
-                    Node element = topElements.item(j);
-
-                    if (element.getNodeType() == Node.ELEMENT_NODE) {
-
-                        String nodeName = element.getNodeName();
-                        String textContent = element.getTextContent();
-
-                        if (!nodeName.equals("linestrips") && !(nodeName.equals("status"))) {
-                     //       System.out.println(nodeName + " = " + textContent);
-
-                            if (nodeName.equals("page_image_original")) {
-                                _pageID = textContent;
-                            } else if(nodeName.equals("page_image_cutout")) {
-                                _blockID = textContent;
-                            }else if(nodeName.equals("width")) {
-                                _scanWidth = Integer.parseInt(textContent);
-                            } else if(nodeName.equals("height")) {
-                                _scanHeight = Integer.parseInt(textContent);
-                            } else if(nodeName.equals("angle")) {
-                                _rotationAngle = Integer.parseInt(textContent);
-                            } else if(nodeName.equals("x1")) {
-                                _xOrigin = Integer.parseInt(textContent);
-                            } else if(nodeName.equals("y1")) {
-                                _yOrigin = Integer.parseInt(textContent);
-                            } else if(nodeName.equals("x2")) {
-                                _arguments.put(XCANVAS, textContent);
-                            } else if(nodeName.equals("y2")) {
-                                _arguments.put(YCANVAS, textContent);
-                            }
+            if (_documentBuilder == null) {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                factory.setNamespaceAware(true); // never forget this!
+
+                _documentBuilder = factory.newDocumentBuilder();
+                _xpath = XPathFactory.newInstance().newXPath();
+            } else {
+                _documentBuilder.reset();
+                _xpath.reset();
+            }
+
+            // read and parse line strip XML input file
+            Document doc = _documentBuilder.parse(input);
+
+            extractInfoFromXML(doc, _xpath);
+
+        } catch (ParserConfigurationException ex) {
+            throw new ConversionException("cannot create XML parser", ex);
+        } catch (SAXException ex) {
+            throw new ConversionException("malformed line strip XML", ex);
+        } catch (XPathExpressionException ex) {
+            throw new ConversionException("cannot extract line strips", ex);
+        }
+    }
+
+    public void extractInfoFromXML(Document doc, XPath xpath) throws XPathExpressionException {
+
+        // retrieve page_image
+        XPathExpression expr = xpath.compile("//start_process_cutout");
+        Object result = expr.evaluate(doc, XPathConstants.NODESET);
+        NodeList nodes = (NodeList) result;
+
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node n = nodes.item(i);
+
+            // get elements from XML
+            NodeList topElements = (NodeList) n.getChildNodes();
+
+            for (int j= 0; j < topElements.getLength(); j++) {
+                Node element = topElements.item(j);
+
+                if (element.getNodeType() == Node.ELEMENT_NODE) {
+
+                    String nodeName = element.getNodeName();
+                    String textContent = element.getTextContent();
+
+                    if (!nodeName.equals("linestrips") && !(nodeName.equals("status"))) {
+                 //       System.out.println(nodeName + " = " + textContent);
+
+                        if (nodeName.equals("page_image_original")) {
+                            _pageID = textContent;
+                        } else if(nodeName.equals("page_image_cutout")) {
+                            _blockID = textContent;
+                        }else if(nodeName.equals("width")) {
+                            _scanWidth = Integer.parseInt(textContent);
+                        } else if(nodeName.equals("height")) {
+                            _scanHeight = Integer.parseInt(textContent);
+                        } else if(nodeName.equals("angle")) {
+                            _rotationAngle = Integer.parseInt(textContent);
+                        } else if(nodeName.equals("x1")) {
+                            _xOrigin = Integer.parseInt(textContent);
+                        } else if(nodeName.equals("y1")) {
+                            _yOrigin = Integer.parseInt(textContent);
+                        } else if(nodeName.equals("x2")) {
+                            _canvasWidth = Integer.valueOf(textContent);
+                        } else if(nodeName.equals("y2")) {
+                            _canvasHeight = Integer.valueOf(textContent);
                         }
                     }
                 }
             }
+        }
 
-            expr = xpath.compile("//linestrip");
-            result = expr.evaluate(doc, XPathConstants.NODESET);
-            nodes = (NodeList) result;
+        expr = xpath.compile("//linestrip");
+        result = expr.evaluate(doc, XPathConstants.NODESET);
+        nodes = (NodeList) result;
 
-            for (int k = 0; k < nodes.getLength(); k++) {
-                Map<String,String> navisRecord = new HashMap<String,String>();
+        for (int k = 0; k < nodes.getLength(); k++) {
+            Map<String,String> navisRecord = new HashMap<String,String>();
 
-                Node m = nodes.item(k);
+            Node m = nodes.item(k);
 
-                // get line elements from XML
-                NodeList lineElements = (NodeList) m.getChildNodes();
+            // get line elements from XML
+            NodeList lineElements = (NodeList) m.getChildNodes();
 
-                for (int j= 0; j < lineElements.getLength(); j++) {
-                    Node element = lineElements.item(j);
+            for (int j= 0; j < lineElements.getLength(); j++) {
+                Node element = lineElements.item(j);
 
-                    if (element.getNodeType() == Node.ELEMENT_NODE) {
+                if (element.getNodeType() == Node.ELEMENT_NODE) {
 
-                        String nodeName = element.getNodeName();
-                        String textContent = element.getTextContent();
+                    String nodeName = element.getNodeName();
+                    String textContent = element.getTextContent();
 
-                        if (nodeName.equals("line_image")) {
-                            navisRecord.put(NAVIS_LINE_IMAGE_URL, textContent);
-                        } else if (nodeName.equals("id")) {
-                            navisRecord.put(NAVIS_LINE_ID, textContent);
-                        } else if (nodeName.equals("y1")) {
-                            navisRecord.put(NAVIS_Y1, textContent);
-                        } else if (nodeName.equals("y2")) {
-                            navisRecord.put(NAVIS_Y2, textContent);
-                        }    
-                    }
+                    if (nodeName.equals("line_image")) {
+                        navisRecord.put(NAVIS_LINE_IMAGE_URL, textContent);
+                    } else if (nodeName.equals("id")) {
+                        navisRecord.put(NAVIS_LINE_ID, textContent);
+                    } else if (nodeName.equals("y1")) {
+                        navisRecord.put(NAVIS_Y1, textContent);
+                    } else if (nodeName.equals("y2")) {
+                        navisRecord.put(NAVIS_Y2, textContent);
+                    }    
                 }
-                navisRecord.put(NAVIS_PAGE_ID, _pageID);
-
-                _navisAnnotations.add(navisRecord);
             }
+            navisRecord.put(NAVIS_PAGE_ID, _pageID);
 
-        } catch (XPathExpressionException ex) {
-            Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
+            _navisAnnotations.add(navisRecord);
         }
     }
     
@@ -432,118 +940,119 @@ public class Navis2OAC {
         for (Map<String,String> navisRecord : _navisAnnotations) {
      //       System.out.println(navisRecord.toString());
 
-            if (navisRecord.get(NAVIS_X) == null) { // line record, assume that all zone records have X set
-                processLineRecord(navisRecord);
-            }
-            else {  // word zone record
-                processWordzoneRecord(navisRecord);
-            }
-
-            // add line to lines for page
-            if (_pageID == null) _pageID = navisRecord.get(NAVIS_PAGE_ID);
-
-            _orderedLinesForPage.add(new Line(getGlobalLineID(navisRecord)));
+            processRecord(navisRecord);
         }
 
         // construct and add TextSegments for lines (where needed) and page
         // add character offsets and ranges on the way
-
-        int pageW = -1;
-        int pageH = -1;
-        String pageTXT = "";
-        int charOffset = 0;
-        int lineOffset = 0;
-        int lineRange = 0;
+        PageText page = new PageText();
 
         for (Line line : _orderedLinesForPage) { // loop over lines of page
-            int lineY = -1;
-            int lineW = -1;
-            int lineH = -1;
-            String lineTXT = "";
+            deriveLineInformation(line, page);
+        }
+
+        // for all lines of page, set line width
+
+        // and add segment for page
+        _textSegments.put(_pageID, page.createSegment());
+    }
 
-            // reset for this line
-            lineOffset = charOffset;
-            lineRange = 0;
+    private void processRecord(Map<String,String> navisRecord) {
+        if (navisRecord.get(NAVIS_X) == null) { // line record, assume that all zone records have X set
+            processLineRecord(navisRecord);
+        }
+        else {  // word zone record
+            processWordzoneRecord(navisRecord);
+        }
 
-            if  ((_orderedWordsForLines.get(line.lineID) != null) &&
-                 (_segmentsForLines.get(line.lineID) == null)) {         // no line segment/line record exists, only wordzones
+        // add line to lines for page
+        if (_pageID == null) _pageID = navisRecord.get(NAVIS_PAGE_ID);
 
-                // add wordzone text to full page text, set wordzone char offsets
-                for (TextSegment seg : _orderedWordsForLines.get(line.lineID)) {
-                    String y1 = seg.navisRecord.get(NAVIS_Y1);
-                    String y2 = seg.navisRecord.get(NAVIS_Y2);
-                    int x = seg.x;
-                    int w = seg.w;
+        _orderedLinesForPage.add(new Line(getGlobalLineID(navisRecord)));
+    }
 
-                    lineY = Integer.parseInt(y1);
-                    lineH = Integer.parseInt(y2) - lineY;
-                    lineW = Math.max(lineW, x + w);
+    private void deriveLineInformation(Line line, PageText page) {
+        int lineY = -1;
+        int lineW = -1;
+        int lineH = -1;
+        String lineTXT = "";
 
-                    if (!lineTXT.equals("")) lineTXT += WORDSEPARATOR;
-                    lineTXT += seg.navisRecord.get(NAVIS_TXT);
+        // reset for this line
+        page.lineOffset = page.charOffset;
+        page.lineRange = 0;
 
-                    seg.textOffset = charOffset;
-                    seg.textRange = seg.navisRecord.get(NAVIS_TXT).length();
+        if  ((_orderedWordsForLines.get(line.lineID) != null) &&
+             (_segmentsForLines.get(line.lineID) == null)) {         // no line segment/line record exists, only wordzones
 
-                    charOffset += seg.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
-                    lineRange += seg.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
-                }
+            // add wordzone text to full page text, set wordzone char offsets
+            for (TextSegment seg : _orderedWordsForLines.get(line.lineID)) {
+                String y1 = seg.navisRecord.get(NAVIS_Y1);
+                String y2 = seg.navisRecord.get(NAVIS_Y2);
+                int x = seg.x;
+                int w = seg.w;
+
+                lineY = Integer.parseInt(y1);
+                lineH = Integer.parseInt(y2) - lineY;
+                lineW = Math.max(lineW, x + w);
+
+                if (!lineTXT.equals("")) lineTXT += WORDSEPARATOR;
+                lineTXT += seg.navisRecord.get(NAVIS_TXT);
+
+                seg.textOffset = page.charOffset;
+                seg.textRange = seg.navisRecord.get(NAVIS_TXT).length();
+
+                page.charOffset += seg.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
+                page.lineRange += seg.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
             }
+        }
 
-            if (_segmentsForLines.get(line.lineID) != null) {
+        if (_segmentsForLines.get(line.lineID) != null) {
 
-                TextSegment lineSegment = _segmentsForLines.get(line.lineID);
+            TextSegment lineSegment = _segmentsForLines.get(line.lineID);
 
-                lineH = lineSegment.h;
-                lineTXT = lineSegment.navisRecord.get(NAVIS_TXT);
+            lineH = lineSegment.h;
+            lineTXT = lineSegment.navisRecord.get(NAVIS_TXT);
 
-                // set offset and range
-                lineSegment.textOffset = charOffset;
+            // set offset and range
+            lineSegment.textOffset = page.charOffset;
 
-                if (lineSegment.navisRecord.get(NAVIS_TXT) != null) {
-                    lineSegment.textRange = lineSegment.navisRecord.get(NAVIS_TXT).length();
-                }
+            if (lineSegment.navisRecord.get(NAVIS_TXT) != null) {
+                lineSegment.textRange = lineSegment.navisRecord.get(NAVIS_TXT).length();
+            }
 
-                charOffset += lineSegment.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
-                lineRange += lineSegment.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
-
-                if (_orderedWordsForLines.get(line.lineID) != null) {    // also wordzones, align their offsets and ranges
-                    int offsetInLine = 0;
-                    int previousOffsetInLine = 0;
-
-                    for (TextSegment seg : _orderedWordsForLines.get(line.lineID)) {
-                        String wzText = seg.navisRecord.get(NAVIS_TXT);
-
-                        int wzPos = lineTXT.indexOf(wzText, offsetInLine);  // first occurance in lineTXT, starting at last position
-                        if (wzPos >= 0) {   // wzText found
-                            seg.textOffset = lineOffset + wzPos;
-                            previousOffsetInLine = offsetInLine;
-                            offsetInLine += wzPos;
-                        } else {    // possibly more wz annots start at same position, search from previous offset
-                            wzPos = lineTXT.indexOf(wzText, previousOffsetInLine);
-                            if (wzPos >= 0) {
-                                seg.textOffset = lineOffset + wzPos;
-                                offsetInLine = previousOffsetInLine + wzPos;
-                            }
-                        }
+            page.charOffset += lineSegment.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
+            page.lineRange += lineSegment.textRange + Navis2OAC.WORDSEPARATOR_LENGTH;
+
+            if (_orderedWordsForLines.get(line.lineID) != null) {    // also wordzones, align their offsets and ranges
+                int offsetInLine = 0;
+                int previousOffsetInLine = 0;
 
-                        seg.textRange = wzText.length();
+                for (TextSegment seg : _orderedWordsForLines.get(line.lineID)) {
+                    String wzText = seg.navisRecord.get(NAVIS_TXT);
+
+                    int wzPos = lineTXT.indexOf(wzText, offsetInLine);  // first occurance in lineTXT, starting at last position
+                    if (wzPos >= 0) {   // wzText found
+                        seg.textOffset = page.lineOffset + wzPos;
+                        previousOffsetInLine = offsetInLine;
+                        offsetInLine += wzPos;
+                    } else {    // possibly more wz annots start at same position, search from previous offset
+                        wzPos = lineTXT.indexOf(wzText, previousOffsetInLine);
+                        if (wzPos >= 0) {
+                            seg.textOffset = page.lineOffset + wzPos;
+                            offsetInLine = previousOffsetInLine + wzPos;
+                        }
                     }
+
+                    seg.textRange = wzText.length();
                 }
             }
-
-            pageW = Math.max(pageW, lineW);
-            pageH = Math.max(pageH, lineY + lineH);
-
-            if (!pageTXT.equals("")) pageTXT += PAGESEPARATOR;
-            pageTXT += lineTXT;
         }
 
-        // for all lines of page, set line width
+        page.w = Math.max(page.w, lineW);
+        page.h = Math.max(page.h, lineY + lineH);
 
-        // and add segment for page
-        TextSegment ps = new TextSegment(0, 0, pageW, pageH, pageTXT, 0, lineOffset + lineRange - Navis2OAC.PAGESEPARATOR_LENGTH, null);
-        _textSegments.put(_pageID, ps);
+        if (page.text.length() > 0) page.text.append(PAGESEPARATOR);
+        page.text.append(lineTXT);
     }
 
     public void processLineRecord(Map<String,String> lineRecord) {
@@ -585,6 +1094,10 @@ public class Navis2OAC {
     private String getGlobalLineID(Map<String,String> navisRecord) {
         // lineID is supposed to be exactly 3 digits, if necessary padded with 0's
         String lineID = navisRecord.get(NAVIS_LINE_ID);
+        if (lineID == null) {
+            throw new IllegalArgumentException("record without line id: " + navisRecord.get(NAVIS_ID));
+        }
+
         while (lineID.length() < 3) {
             lineID = "0" + lineID;
         }
@@ -592,13 +1105,7 @@ public class Navis2OAC {
         return navisRecord.get(NAVIS_PAGE_ID) + "-" + lineID;
     }
 
-    private void applyOffsets(String xOffset, String yOffset) {
-        int x = 0;
-        int y = 0;
-
-        if (xOffset != null) x = Integer.parseInt(xOffset);
-        if (yOffset != null) y = Integer.parseInt(yOffset);
-
+    private void applyOffsets(int x, int y) {
         if (x >= 0 && y >= 0 && (x > 0 || y > 0)) {
             for (String segID : _textSegments.keySet()) {
                 TextSegment seg = _textSegments.get(segID);
@@ -611,11 +1118,7 @@ public class Navis2OAC {
         }
     }
 
-    private void applyScaling(String scalingFactor) {
-        double s = 0;
-
-        if (scalingFactor != null) s = Double.parseDouble(scalingFactor);
-
+    private void applyScaling(double s) {
         if (s > 0) {
             for (String segID : _textSegments.keySet()) {
                 TextSegment seg = _textSegments.get(segID);
@@ -628,16 +1131,12 @@ public class Navis2OAC {
         }
     }
 
-    private void setCanvasDimensions(String xCanvas, String yCanvas, String scalingFactor) {
-        double s = 0;
-
-        if (scalingFactor != null) s = Double.parseDouble(scalingFactor);
-
+    private void setCanvasDimensions(Integer xCanvas, Integer yCanvas, double s) {
         if (xCanvas != null && yCanvas != null) {
             TextSegment pageSeg = _textSegments.get(_pageID);
             
-            pageSeg.w = Integer.parseInt(xCanvas);
-            pageSeg.h = Integer.parseInt(yCanvas);
+            pageSeg.w = xCanvas.intValue();
+            pageSeg.h = yCanvas.intValue();
 
             if (s > 0) {
                 pageSeg.w = (int) (pageSeg.w/s);
@@ -646,12 +1145,59 @@ public class Navis2OAC {
         }
     }
 
+    // canvas size from the header of the page scan, unless given in the options
+    private void probeCanvasDimensions() {
+        if (_canvasWidth != null && _canvasHeight != null) return;
+
+        File scan = findScan();
+        if (scan == null) return;
+
+        int[] dimensions = ImageSizeCache.getInstance(_options.getImageCache()).getDimensions(scan);
+        if (dimensions != null) {
+            _canvasWidth = dimensions[0];
+            _canvasHeight = dimensions[1];
+        } else {
+            Logger.getLogger(Navis2OAC.class.getName()).log(Level.WARNING,
+                    "no image size in {0}, canvas size of {1} is estimated", new Object[] {scan, _pageID});
+        }
+    }
+
+    private File findScan() {
+        if (_options.getScanFile() != null) return _options.getScanFile();
+
+        if (_options.getScanDir() != null && _pageID != null) {
+            for (String extension : SCAN_EXTENSIONS) {
+                File scan = new File(_options.getScanDir(), _pageID + extension);
+                if (scan.exists()) return scan;
+            }
+        }
+        return null;
+    }
+
     public void addTriplesToStore() {
         TextSegment seg = _textSegments.get(_pageID);
+        URI canvasURI = URI.create(SesameStore.CATCHPLUS + _pageID);
+
+        // canvas, full page text annotation, its full text Body and image annotation
+        URI[] pageNodes = getAnnotationNodes(_pageID,
+                new String[] {seg.text, Integer.toString(seg.w), Integer.toString(seg.h)},
+                new URI[] {canvasURI, null, null, null});
+        URI fullTextBodyURI = pageNodes[2];
+
+        addTriplesForPage(canvasURI, pageNodes[1], fullTextBodyURI, pageNodes[3]);
+
+        // create TextAnnotations for each line
+
+        for (Line l : _orderedLinesForPage) {
+            addTriplesForLine(l, canvasURI, fullTextBodyURI);
+        }
+    }
+
+    private void addTriplesForPage(URI canvasURI, URI annotationURI, URI fullTextBodyURI, URI imageAnnotURI) {
+        TextSegment seg = _textSegments.get(_pageID);
 
         // create Canvas
         // id, type, title, height, width
-        URI canvasURI = URI.create(SesameStore.CATCHPLUS + _pageID);
 
         _sesameStore.addTriple(canvasURI, SesameStore.RDF_TYPE, SesameStore.SC_CANVAS);
         _sesameStore.addTriple(canvasURI, SesameStore.DC_TITLE, "Canvas for " + _pageID);
@@ -659,9 +1205,6 @@ public class Navis2OAC {
         _sesameStore.addTriple(canvasURI, SesameStore.EXIF_WIDTH, Integer.toString(seg.w));
 
         // create full page text annotation
-        URI annotationURI = URI.create("urn:uuid:" + UUID.randomUUID());
-        URI fullTextBodyURI = URI.create("urn:uuid:" + UUID.randomUUID());
-
         _sesameStore.addTriple(annotationURI, SesameStore.RDF_TYPE, SesameStore.OAC_ANNOTATION);
         _sesameStore.addTriple(annotationURI, SesameStore.RDF_TYPE, SesameStore.CP_TEXTANNOTATION);
         _sesameStore.addTriple(annotationURI, SesameStore.OAC_HASBODY, fullTextBodyURI);
@@ -675,7 +1218,6 @@ public class Navis2OAC {
         _sesameStore.addTriple(fullTextBodyURI, SesameStore.CNT_CHARACTERENCODING, "UTF-8");
 
         // create image annotation
-        URI imageAnnotURI = URI.create("urn:uuid:" + UUID.randomUUID());
         URI imageURI = URI.create(SesameStore.CATCHPLUS + _pageID + ".jpg"); //fake URI
 
         _sesameStore.addTriple(imageAnnotURI, SesameStore.RDF_TYPE, SesameStore.OAC_ANNOTATION);
@@ -683,26 +1225,23 @@ public class Navis2OAC {
         _sesameStore.addTriple(imageAnnotURI, SesameStore.OAC_HASBODY, imageURI);
         _sesameStore.addTriple(imageAnnotURI, SesameStore.OAC_HASTARGET, canvasURI);
         _sesameStore.addTriple(imageAnnotURI, SesameStore.DC_TITLE, "Image annotation of " + _pageID);
+    }
 
-        // create TextAnnotations for each line
-
-        for (Line l : _orderedLinesForPage) {
-            TextSegment lineSeg = _textSegments.get(l.lineID);
+    private void addTriplesForLine(Line l, URI canvasURI, URI fullTextBodyURI) {
+        TextSegment lineSeg = _textSegments.get(l.lineID);
 
-            if (lineSeg != null) {
-                addTriplesForTextSegment(lineSeg, l.lineID, canvasURI, fullTextBodyURI);
-            }
+        if (lineSeg != null) {
+            addTriplesForTextSegment(lineSeg, l.lineID, canvasURI, fullTextBodyURI);
+        }
 
-            if (_orderedWordsForLines.get(l.lineID) != null) {   // there are wordzone annots for this line
-                for (TextSegment wSeg : _orderedWordsForLines.get(l.lineID)) {
-                    addTriplesForTextSegment(wSeg, "", canvasURI, fullTextBodyURI);
-                }
+        if (_orderedWordsForLines.get(l.lineID) != null) {   // there are wordzone annots for this line
+            for (TextSegment wSeg : _orderedWordsForLines.get(l.lineID)) {
+                addTriplesForTextSegment(wSeg, "", canvasURI, fullTextBodyURI);
             }
         }
     }
 
     private void addTriplesForTextSegment(TextSegment seg, String id, URI canvasURI, URI fullTextURI) {
-        URI segAnnotURI = URI.create("urn:uuid:" + UUID.randomUUID());
         URI annotationType;
         if (seg.navisRecord == null) {  // generated TextSegment
             annotationType = SesameStore.CP_TEXTANNOTATION;
@@ -712,8 +1251,13 @@ public class Navis2OAC {
             annotationType = SesameStore.CP_MONKANNOTATION;
             id = seg.navisRecord.get(Navis2OAC.NAVIS_ID);
         }
-        URI constrainedBodyURI = URI.create("urn:uuid:" + UUID.randomUUID());
-        URI constrainedTargetURI = URI.create("urn:uuid:" + UUID.randomUUID());
+
+        // annotation, ConstrainedBody, text Constraint, ConstrainedTarget, svg Constraint
+        URI[] nodes = getAnnotationNodes(id, getSnapshotValues(seg, annotationType, id, canvasURI, fullTextURI), new URI[5]);
+        URI segAnnotURI = nodes[0];
+        seg.annotationURI = segAnnotURI;
+        URI constrainedBodyURI = nodes[1];
+        URI constrainedTargetURI = nodes[3];
 
         _sesameStore.addTriple(segAnnotURI, SesameStore.RDF_TYPE, SesameStore.OAC_ANNOTATION);
         _sesameStore.addTriple(segAnnotURI, SesameStore.RDF_TYPE, annotationType);
@@ -734,7 +1278,7 @@ public class Navis2OAC {
         }
 
         // ... its ConstrainedBody + Constraint
-        URI textConstraintURI = URI.create("urn:uuid:" + UUID.randomUUID());
+        URI textConstraintURI = nodes[2];
 
         _sesameStore.addTriple(constrainedBodyURI, SesameStore.RDF_TYPE, SesameStore.OAC_CONSTRAINEDBODY);
         _sesameStore.addTriple(constrainedBodyURI, SesameStore.OAC_CONSTRAINS, fullTextURI);
@@ -751,7 +1295,7 @@ public class Navis2OAC {
         _sesameStore.addTriple(textConstraintURI, SesameStore.CNT_CHARACTERENCODING, "UTF-8");
 
         // ... and its ConstrainedTarget + Constraint
-        URI svgConstraintURI = URI.create("urn:uuid:" + UUID.randomUUID());
+        URI svgConstraintURI = nodes[4];
 
         _sesameStore.addTriple(constrainedTargetURI, SesameStore.RDF_TYPE, SesameStore.OAC_CONSTRAINEDTARGET);
         _sesameStore.addTriple(constrainedTargetURI, SesameStore.OAC_CONSTRAINS, canvasURI);
@@ -774,30 +1318,109 @@ public class Navis2OAC {
         _sesameStore.addTriple(svgConstraintURI, SesameStore.CNT_CHARACTERENCODING, "UTF-8");
     }
 
+    /**
+     * Fills in the node URIs of an annotation that are null: the URIs of the
+     * previous conversion if the snapshot has the annotation, fresh ones
+     * otherwise. With a snapshot, the annotation is recorded in the snapshot
+     * of this conversion.
+     *
+     * @param values values the triples of the annotation are made from
+     */
+    private URI[] getAnnotationNodes(String key, String[] values, URI[] nodes) {
+        if (_snapshot != null) {
+            // keys must be unique within the page, e.g. word zones without navis ID
+            String uniqueKey = key;
+            for (int n = 2; _snapshot.contains(uniqueKey); n++) {
+                uniqueKey = key + "#" + n;
+            }
+            key = uniqueKey;
+        }
+
+        PageSnapshot.Annotation previous = _previousSnapshot != null ? _previousSnapshot.get(key) : null;
+        if (previous != null && previous.getNodes().length != nodes.length) previous = null;
+
+        for (int i = 0; i < nodes.length; i++) {
+            if (nodes[i] != null) continue;
+
+            if (previous != null) {
+                nodes[i] = URI.create(previous.getNodes()[i]);
+            } else {
+                nodes[i] = URI.create("urn:uuid:" + UUID.randomUUID());
+            }
+        }
+
+        if (_snapshot != null) {
+            String[] nodeStrings = new String[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                nodeStrings[i] = nodes[i].toString();
+            }
+            _snapshot.add(new PageSnapshot.Annotation(key, values, nodeStrings));
+        }
+
+        return nodes;
+    }
+
+    // everything the triples of a text segment annotation are made from, besides its node URIs
+    private String[] getSnapshotValues(TextSegment seg, URI annotationType, String id, URI canvasURI, URI fullTextURI) {
+        String user = null;
+        String time = null;
+        String trailingTags = null;
+        if (seg.navisRecord != null) {
+            user = seg.navisRecord.get(Navis2OAC.NAVIS_USER);
+            time = seg.navisRecord.get(Navis2OAC.NAVIS_TIME);
+            trailingTags = seg.navisRecord.get(Navis2OAC.NAVIS_TRAILING_TAGS);
+        }
+
+        return new String[] {annotationType.toString(), id, seg.text,
+                Integer.toString(seg.textOffset), Integer.toString(seg.textRange),
+                Integer.toString(seg.x), Integer.toString(seg.y), Integer.toString(seg.w), Integer.toString(seg.h),
+                user, time, trailingTags, canvasURI.toString(), fullTextURI.toString()};
+    }
+
     public void addTriplesToStoreLS() {
-        TextSegment seg = _textSegments.get(_pageID);
+        URI canvasURI = getScanCanvasURI(_pageID);
 
-        // create Canvas
-        URI canvasURI = URI.create("urn:uuid:" + UUID.randomUUID());
+        addScanTriples(_sesameStore, _pageID, _scanWidth, _scanHeight);
+        addBlockTriplesLS(canvasURI);
+    }
 
-        _sesameStore.addTriple(canvasURI, SesameStore.RDF_TYPE, SesameStore.SC_CANVAS);
-        _sesameStore.addTriple(canvasURI, SesameStore.DC_TITLE, "Canvas for " + _pageID);
-        _sesameStore.addTriple(canvasURI, SesameStore.EXIF_HEIGHT, Integer.toString(_scanHeight));
-        _sesameStore.addTriple(canvasURI, SesameStore.EXIF_WIDTH, Integer.toString(_scanWidth));
+    /**
+     * Canvas of a scan that line strip blocks are cut from. The URI only
+     * depends on the page image, so all blocks of the scan, converted
+     * together or one by one, share the canvas.
+     */
+    static URI getScanCanvasURI(String pageImage) {
+        return URI.create("urn:uuid:" + UUID.nameUUIDFromBytes(("canvas/" + pageImage).getBytes()));
+    }
+
+    /**
+     * Adds the canvas of a scan and the image annotation of the page image on
+     * it, once per scan.
+     */
+    static void addScanTriples(SesameStore store, String pageImage, int scanWidth, int scanHeight) {
+        URI canvasURI = getScanCanvasURI(pageImage);
+
+        store.addTriple(canvasURI, SesameStore.RDF_TYPE, SesameStore.SC_CANVAS);
+        store.addTriple(canvasURI, SesameStore.DC_TITLE, "Canvas for " + pageImage);
+        store.addTriple(canvasURI, SesameStore.EXIF_HEIGHT, Integer.toString(scanHeight));
+        store.addTriple(canvasURI, SesameStore.EXIF_WIDTH, Integer.toString(scanWidth));
 
         // create image annotation
-        if (_pageID != null) {
-            URI imageAnnotURI = URI.create("urn:uuid:" + UUID.randomUUID());
-            URI imageURI = URI.create(_pageID);
+        if (pageImage != null) {
+            URI imageAnnotURI = URI.create("urn:uuid:" + UUID.nameUUIDFromBytes(("image/" + pageImage).getBytes()));
+            URI imageURI = URI.create(pageImage);
 
-            _sesameStore.addTriple(imageAnnotURI, SesameStore.RDF_TYPE, SesameStore.OA_ANNOTATION);
-            _sesameStore.addTriple(imageAnnotURI, SesameStore.OA_HASBODY, imageURI);
-            _sesameStore.addTriple(imageAnnotURI, SesameStore.OA_HASTARGET, canvasURI);
-            _sesameStore.addTriple(imageAnnotURI, SesameStore.DC_TITLE, "Image annotation of " + _pageID);
+            store.addTriple(imageAnnotURI, SesameStore.RDF_TYPE, SesameStore.OA_ANNOTATION);
+            store.addTriple(imageAnnotURI, SesameStore.OA_HASBODY, imageURI);
+            store.addTriple(imageAnnotURI, SesameStore.OA_HASTARGET, canvasURI);
+            store.addTriple(imageAnnotURI, SesameStore.DC_TITLE, "Image annotation of " + pageImage);
 
-            _sesameStore.addTriple(imageURI, SesameStore.RDF_TYPE, SesameStore.DCTYPES_IMAGE);
+            store.addTriple(imageURI, SesameStore.RDF_TYPE, SesameStore.DCTYPES_IMAGE);
         }
+    }
 
+    // region of the block on the canvas of the scan, with its line strips
+    private void addBlockTriplesLS(URI canvasURI) {
         // create an empty annotation for the line strip block
         // create SpecificResource for line strip block
         URI textBlockAnnotURI  = URI.create("urn:uuid:" + UUID.randomUUID());
@@ -822,9 +1445,9 @@ public class Navis2OAC {
             + "\" y=\""
             + _yOrigin
             + "\" width=\""
-            + _arguments.get(XCANVAS)
+            + _canvasWidth
             + "\" height=\""
-            + _arguments.get(YCANVAS)
+            + _canvasHeight
             + "\" transform=\"rotate("
             + _rotationAngle
             + ",0,0)"
@@ -920,6 +1543,7 @@ public class Navis2OAC {
         protected int textOffset = -1; // relative to full page text
         protected int textRange;
         protected Map<String,String> navisRecord;
+        protected URI annotationURI;    // node of the annotation in the RDF, once its triples are added
 
         public TextSegment(int x, int y, int w, int h, String text, int textOffset, int textRange, Map<String, String> navisRecord) {
             this.x = x;
@@ -949,6 +1573,23 @@ public class Navis2OAC {
         }
     }
 
+    /**
+     * Running totals while deriving line information for one page.
+     */
+    private class PageText {
+
+        protected int w = -1;
+        protected int h = -1;
+        protected StringBuilder text = new StringBuilder();
+        protected int charOffset = 0;
+        protected int lineOffset = 0;
+        protected int lineRange = 0;
+
+        public TextSegment createSegment() {
+            return new TextSegment(0, 0, w, h, text.toString(), 0, lineOffset + lineRange - Navis2OAC.PAGESEPARATOR_LENGTH, null);
+        }
+    }
+
     /**
      * Line id: is a String with a special sorting order.
      */
@@ -960,9 +1601,13 @@ public class Navis2OAC {
             this.lineID = lineID;
         }
 
+        public int getLineNumber() {
+            return Integer.parseInt(lineID.substring(lineID.length() - 3));
+        }
+
         public int compareTo(Line lID) {
-            int line = Integer.parseInt(lineID.substring(lineID.length() - 3));
-            int l = Integer.parseInt(lID.lineID.substring(lID.lineID.length() - 3));
+            int line = getLineNumber();
+            int l = lID.getLineNumber();
 
             if (line > l)
                 return 1;
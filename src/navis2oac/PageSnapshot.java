@@ -0,0 +1,185 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The annotations of one converted page, as a conversion left them: per
+ * annotation its key (page ID, line ID or navis ID), the values its triples
+ * were made from (text, offsets, rect, ...) and the URIs of the nodes it
+ * consists of. The next conversion of the page compares its annotations to
+ * the snapshot to find out which changed, and reuses the node URIs so that
+ * unchanged annotations keep their identity. Kept in a file, one line per
+ * annotation:
+ *
+ * <pre>
+ * key TAB value TAB value ... TAB TAB node TAB node ...
+ * </pre>
+ *
+ * Tabs, newlines and backslashes in values are escaped, a null value is
+ * written as \N.
+ *
+ * @author hennieb
+ */
+public class PageSnapshot {
+
+    private Map<String,Annotation> _annotations = new LinkedHashMap<String,Annotation>();
+
+    /**
+     * @return the snapshot in file, empty if there is no such file
+     */
+    public static PageSnapshot load(File file) throws IOException {
+        PageSnapshot snapshot = new PageSnapshot();
+        if (!file.exists()) return snapshot;
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = in.readLine();
+            while (line != null) {
+                int separator = line.lastIndexOf("\t\t");   // values may be empty, nodes are not
+                if (separator < 0) throw new IOException("damaged snapshot " + file);
+
+                String[] values = line.substring(0, separator).split("\t", -1);
+                String[] nodes = line.substring(separator + 2).split("\t");
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = unescape(values[i]);
+                }
+
+                String[] annotationValues = new String[values.length - 1];
+                System.arraycopy(values, 1, annotationValues, 0, annotationValues.length);
+
+                snapshot.add(new Annotation(values[0], annotationValues, nodes));
+                line = in.readLine();
+            }
+        } finally {
+            in.close();
+        }
+
+        return snapshot;
+    }
+
+    /**
+     * Writes the snapshot under a temporary name and renames it, so an
+     * interrupted write leaves the earlier snapshot in place.
+     */
+    public void write(File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            for (Annotation annotation : _annotations.values()) {
+                out.write(escape(annotation.key));
+                for (String value : annotation.values) {
+                    out.write('\t');
+                    out.write(escape(value));
+                }
+                out.write('\t');
+                for (String node : annotation.nodes) {
+                    out.write('\t');
+                    out.write(node);
+                }
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+
+        if (file.exists() && !file.delete()) throw new IOException("cannot replace " + file);
+        if (!tempFile.renameTo(file)) throw new IOException("cannot rename " + tempFile + " to " + file);
+    }
+
+    public void add(Annotation annotation) {
+        _annotations.put(annotation.key, annotation);
+    }
+
+    public Annotation get(String key) {
+        return _annotations.get(key);
+    }
+
+    public boolean contains(String key) {
+        return _annotations.containsKey(key);
+    }
+
+    public Collection<Annotation> getAnnotations() {
+        return _annotations.values();
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "\\N";
+
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String unescape(String value) {
+        if (value.equals("\\N")) return null;
+        if (value.indexOf('\\') < 0) return value;
+
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                c = value.charAt(++i);
+                if (c == 't') c = '\t';
+                else if (c == 'n') c = '\n';
+                else if (c == 'r') c = '\r';
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * One annotation of the page: key, the values its triples depend on and
+     * the URIs of its nodes.
+     */
+    public static class Annotation {
+
+        protected String key;
+        protected String[] values;
+        protected String[] nodes;
+
+        public Annotation(String key, String[] values, String[] nodes) {
+            this.key = key;
+            this.values = values;
+            this.nodes = nodes;
+        }
+
+        public String getKey() { return key; }
+        public String[] getNodes() { return nodes; }
+
+        /**
+         * @return true if the triples of other would be the same as the
+         * triples of this annotation
+         */
+        public boolean sameAs(Annotation other) {
+            return Arrays.equals(values, other.values) && Arrays.equals(nodes, other.nodes);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.rdfxml.RDFXMLWriter;
+
+/**
+ * Serializes a stream of statements to RDF/XML on several threads. The
+ * statements are cut into blocks as they arrive, each block is written by its
+ * own RDFXMLWriter into a separate buffer, and the finished blocks are copied
+ * to the output in arrival order. RDF/XML as written here is a sequence of
+ * independent rdf:Description blocks under one rdf:RDF root, so the block
+ * bodies can be concatenated, which keeps the output deterministic.
+ *
+ * Only a few blocks per thread are held at a time, so memory does not grow
+ * with the graph. Statements should arrive grouped by subject, as a
+ * TripleBuffer returns them: a block never ends between two statements of the
+ * same subject.
+ *
+ * @author hennieb
+ */
+public class ParallelExporter {
+
+    private static final String DESCRIPTION_START = "<rdf:Description";
+    private static final String RDF_END = "</rdf:RDF>";
+
+    // statements per block, a block is serialized by one thread
+    private static final int BLOCK_SIZE = 4096;
+
+    // blocks being serialized or waiting to be written, per thread
+    private static final int BLOCKS_PER_THREAD = 2;
+
+    private Writer _writer;
+    private ExecutorService _executor;
+    private int _maxPendingBlocks;
+    private LinkedList<Future<String>> _pendingBlocks = new LinkedList<Future<String>>();
+    private List<Statement> _block = new ArrayList<Statement>();
+    private String _footer;     // known once the first block is written
+    private int _statementCount = 0;
+
+    /**
+     * @param writer receives the document; it is flushed, not closed, by finish
+     */
+    public ParallelExporter(int threads, Writer writer) {
+        _writer = writer;
+        _executor = Executors.newFixedThreadPool(threads);
+        _maxPendingBlocks = threads * BLOCKS_PER_THREAD;
+    }
+
+    /**
+     * Adds a statement; may write finished blocks to the output.
+     */
+    public void add(Statement st) throws RDFHandlerException, IOException {
+        if (_block.size() >= BLOCK_SIZE && !st.getSubject().equals(_block.get(_block.size() - 1).getSubject())) {
+            submitBlock();
+        }
+
+        _block.add(st);
+        _statementCount++;
+    }
+
+    public int getStatementCount() {
+        return _statementCount;
+    }
+
+    /**
+     * Writes the statements not written yet and completes the document.
+     */
+    public void finish() throws RDFHandlerException, IOException {
+        if (!_block.isEmpty()) submitBlock();
+
+        while (!_pendingBlocks.isEmpty()) {
+            writeBlock(_pendingBlocks.removeFirst());
+        }
+
+        if (_footer == null) {  // nothing to export, still write an empty document
+            _writer.write(serialize(new ArrayList<Statement>()));
+        } else {
+            _writer.write(_footer);
+        }
+        _writer.flush();
+    }
+
+    /**
+     * Stops the serializing threads, also after a failure.
+     */
+    public void close() {
+        _executor.shutdownNow();
+    }
+
+    private void submitBlock() throws RDFHandlerException, IOException {
+        final List<Statement> block = _block;
+        _block = new ArrayList<Statement>();
+
+        _pendingBlocks.add(_executor.submit(new Callable<String>() {
+            public String call() throws RDFHandlerException {
+                return serialize(block);
+            }
+        }));
+
+        // the reading thread waits for the oldest block rather than read ahead
+        while (_pendingBlocks.size() > _maxPendingBlocks) {
+            writeBlock(_pendingBlocks.removeFirst());
+        }
+    }
+
+    private void writeBlock(Future<String> result) throws RDFHandlerException, IOException {
+        String document = getResult(result);
+        int bodyStart = document.indexOf(DESCRIPTION_START);
+        int bodyEnd = document.lastIndexOf(RDF_END);
+
+        if (_footer == null) {
+            _writer.write(document, 0, bodyStart);
+            _footer = document.substring(bodyEnd);
+        }
+        _writer.write(document, bodyStart, bodyEnd - bodyStart);
+    }
+
+    private static String serialize(List<Statement> statements) throws RDFHandlerException {
+        StringWriter buffer = new StringWriter();
+        RDFXMLWriter rdfDocWriter = new RDFXMLWriter(buffer);
+
+        rdfDocWriter.startRDF();
+        for (Statement st : statements) {
+            rdfDocWriter.handleStatement(st);
+        }
+        rdfDocWriter.endRDF();
+
+        return buffer.toString();
+    }
+
+    private static String getResult(Future<String> result) throws RDFHandlerException {
+        try {
+            return result.get();
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RDFHandlerException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RDFHandlerException) {
+                throw (RDFHandlerException) ex.getCause();
+            }
+            throw new RDFHandlerException(ex.getCause());
+        }
+    }
+}
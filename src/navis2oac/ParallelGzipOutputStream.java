@@ -0,0 +1,165 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip file output compressed on several threads. The data is cut into
+ * blocks, each block is compressed on a thread pool into a gzip member of its
+ * own and the members are written to the file in order. A file of several
+ * members is a standard gzip file: gunzip, zcat and GZIPInputStream read it
+ * as one stream. The caller only waits when the compressors fall a number of
+ * blocks behind. close() writes the rest, fsyncs the file and closes it.
+ *
+ * @author hennieb
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    // large enough to compress nearly as well as one member for the whole file
+    private static final int BLOCK_SIZE = 512 * 1024;
+
+    // blocks waiting for compression or output, per thread
+    private static final int PENDING_PER_THREAD = 2;
+
+    private FileOutputStream _out;
+    private ExecutorService _compressors;
+    private int _maxPending;
+    private LinkedList<Future<byte[]>> _pending = new LinkedList<Future<byte[]>>();
+
+    private byte[] _block = new byte[BLOCK_SIZE];
+    private int _blockLength = 0;
+    private boolean _empty = true;
+    private boolean _closed = false;
+
+    public ParallelGzipOutputStream(File file, int threads) throws FileNotFoundException {
+        _out = new FileOutputStream(file);
+        _maxPending = threads * PENDING_PER_THREAD;
+
+        _compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "navis2oac-compressor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+
+        _block[_blockLength++] = (byte) b;
+        if (_blockLength == BLOCK_SIZE) handOff();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+
+        while (len > 0) {
+            int n = Math.min(len, BLOCK_SIZE - _blockLength);
+            System.arraycopy(b, off, _block, _blockLength, n);
+            _blockLength += n;
+            off += n;
+            len -= n;
+
+            if (_blockLength == BLOCK_SIZE) handOff();
+        }
+    }
+
+    /**
+     * Does nothing: a block is only compressed when it is full, flushing
+     * smaller blocks would spoil the compression.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (_closed) return;
+
+        try {
+            // empty output is still written as one (empty) member
+            if (_blockLength > 0 || _empty) handOff();
+            while (!_pending.isEmpty()) {
+                writeMember();
+            }
+
+            _out.getFD().sync();
+
+        } finally {
+            _closed = true;
+            _compressors.shutdownNow();
+            _out.close();
+        }
+    }
+
+    // hands the current block to a compressor and continues in a new one
+    private void handOff() throws IOException {
+        final byte[] block = _block;
+        final int length = _blockLength;
+
+        _pending.add(_compressors.submit(new Callable<byte[]>() {
+            public byte[] call() throws IOException {
+                return compress(block, length);
+            }
+        }));
+
+        _block = new byte[BLOCK_SIZE];
+        _blockLength = 0;
+        _empty = false;
+
+        // members are written in order; finished ones right away, otherwise only when too far behind
+        while (!_pending.isEmpty() && (_pending.getFirst().isDone() || _pending.size() > _maxPending)) {
+            writeMember();
+        }
+    }
+
+    private void writeMember() throws IOException {
+        Future<byte[]> member = _pending.removeFirst();
+
+        try {
+            _out.write(member.get());
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) throw (IOException) ex.getCause();
+            throw new IOException(ex.getCause().toString());
+        }
+    }
+
+    private static byte[] compress(byte[] block, int length) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4);
+
+        GZIPOutputStream gzip = new GZIPOutputStream(member, 64 * 1024);
+        gzip.write(block, 0, length);
+        gzip.close();
+
+        return member.toByteArray();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (_closed) throw new IOException("stream closed");
+    }
+}
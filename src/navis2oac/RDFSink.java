@@ -0,0 +1,102 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Destination of the RDF/XML output of one conversion.
+ *
+ * @author hennieb
+ */
+public abstract class RDFSink {
+
+    /**
+     * Output to a file, written by a background thread (see AsyncFileWriter).
+     * The file is complete, and synced to disk, when the conversion returns.
+     */
+    public static RDFSink toFile(final File file) {
+        return new RDFSink() {
+            protected Writer openWriter() throws IOException {
+                return new AsyncFileWriter(file.getAbsoluteFile());
+            }
+
+            protected void closeWriter(Writer writer) throws IOException {
+                writer.close();
+            }
+
+            @Override
+            public String toString() {
+                return file.getPath();
+            }
+        };
+    }
+
+    /**
+     * Gzip compressed output to a file, compressed on a number of threads
+     * (see ParallelGzipOutputStream). The file is complete, and synced to
+     * disk, when the conversion returns.
+     */
+    public static RDFSink toGzipFile(final File file, final int threads) {
+        return new RDFSink() {
+            protected Writer openWriter() throws IOException {
+                return new BufferedWriter(new OutputStreamWriter(
+                        new ParallelGzipOutputStream(file.getAbsoluteFile(), threads), "UTF8"));
+            }
+
+            protected void closeWriter(Writer writer) throws IOException {
+                writer.close();
+            }
+
+            @Override
+            public String toString() {
+                return file.getPath();
+            }
+        };
+    }
+
+    /**
+     * Output to a stream, UTF-8 encoded. The stream is flushed but left open.
+     */
+    public static RDFSink toStream(final OutputStream out) {
+        return new RDFSink() {
+            protected Writer openWriter() throws IOException {
+                return new BufferedWriter(new OutputStreamWriter(out, "UTF8"));
+            }
+
+            protected void closeWriter(Writer writer) throws IOException {
+                writer.flush();
+            }
+        };
+    }
+
+    /**
+     * Output to System.out as it is when the output starts.
+     */
+    public static RDFSink toStdout() {
+        return new RDFSink() {
+            protected Writer openWriter() throws IOException {
+                return new BufferedWriter(new OutputStreamWriter(System.out, "UTF8"));
+            }
+
+            protected void closeWriter(Writer writer) throws IOException {
+                writer.flush();
+            }
+        };
+    }
+
+    protected abstract Writer openWriter() throws IOException;
+
+    /**
+     * Finishes output written to a writer from openWriter.
+     */
+    protected abstract void closeWriter(Writer writer) throws IOException;
+}
@@ -0,0 +1,398 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffer for parsed navis records that keeps at most a given number of bytes
+ * on the heap. When the buffer is full, its records are sorted and spilled to
+ * a temporary run file. A Reader returns all records ordered by sort key and,
+ * within one key, by order of addition, merging the spilled runs on the fly.
+ * At most MAX_FAN_IN run files are open at a time: with more runs, they are
+ * first merged in passes into fewer, longer runs.
+ *
+ * @author hennieb
+ */
+public class RecordSpool {
+
+    // rough per object overhead used for estimating heap usage
+    private static final int RECORD_OVERHEAD = 64;
+    private static final int ENTRY_OVERHEAD = 80;
+
+    private static final int MAX_FAN_IN = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private long _maxBytes;
+    private long _bufferedBytes = 0;
+    private long _sequence = 0;
+
+    private List<SpoolEntry> _buffer = new ArrayList<SpoolEntry>();
+    private List<File> _runFiles = new ArrayList<File>();
+    private List<RunReader> _openRuns = new ArrayList<RunReader>();
+
+    /**
+     * @param maxBytes estimated number of bytes of records to keep in memory
+     * before spilling them to disk
+     */
+    public RecordSpool(long maxBytes) {
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     * @throws IOException if the buffer is full and cannot be spilled
+     */
+    public void add(int sortKey, Map<String,String> record) throws IOException {
+        _buffer.add(new SpoolEntry(sortKey, _sequence++, record));
+        _bufferedBytes += estimateSize(record);
+
+        if (_bufferedBytes > _maxBytes) {
+            spill();
+        }
+    }
+
+    public int getRunCount() {
+        return _runFiles.size();
+    }
+
+    /**
+     * Reads all records, in sort key order. Records still buffered are merged
+     * with the spilled runs, they are not written to disk.
+     */
+    public Reader open() throws IOException {
+        // merge passes until the runs fit in one merge
+        while (_runFiles.size() > MAX_FAN_IN) {
+            List<File> runFiles = new ArrayList<File>();
+
+            try {
+                for (int i = 0; i < _runFiles.size(); i += MAX_FAN_IN) {
+                    List<File> group = _runFiles.subList(i, Math.min(i + MAX_FAN_IN, _runFiles.size()));
+                    runFiles.add(mergeRuns(group));
+                }
+            } catch (IOException ex) {
+                deleteRuns(runFiles);
+                throw ex;
+            }
+
+            deleteRuns(_runFiles);
+            _runFiles = runFiles;
+        }
+
+        Collections.sort(_buffer);
+
+        List<Run> runs = new ArrayList<Run>();
+        runs.add(new BufferRun(_buffer.iterator()));
+        for (File runFile : _runFiles) {
+            runs.add(openRun(runFile));
+        }
+
+        return new Reader(runs);
+    }
+
+    /**
+     * Removes all temporary run files.
+     */
+    public void close() {
+        for (RunReader run : _openRuns) {
+            run.close();
+        }
+        _openRuns.clear();
+
+        deleteRuns(_runFiles);
+        _runFiles.clear();
+        _buffer.clear();
+        _bufferedBytes = 0;
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(_buffer);
+
+        File runFile = File.createTempFile("navis2oac-run", ".tmp");
+        runFile.deleteOnExit();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), BUFFER_SIZE));
+        try {
+            for (SpoolEntry entry : _buffer) {
+                writeEntry(out, entry);
+            }
+            out.close();
+
+        } catch (IOException ex) {
+            closeQuietly(out);
+            runFile.delete();
+            throw ex;
+        }
+
+        _runFiles.add(runFile);
+        _buffer.clear();
+        _bufferedBytes = 0;
+    }
+
+    // one longer run from a group of runs
+    private File mergeRuns(List<File> group) throws IOException {
+        File runFile = File.createTempFile("navis2oac-run", ".tmp");
+        runFile.deleteOnExit();
+
+        List<Run> runs = new ArrayList<Run>();
+        DataOutputStream out = null;
+        try {
+            for (File f : group) {
+                runs.add(openRun(f));
+            }
+
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), BUFFER_SIZE));
+            Reader merged = new Reader(runs);
+            SpoolEntry entry = merged.nextEntry();
+            while (entry != null) {
+                writeEntry(out, entry);
+                entry = merged.nextEntry();
+            }
+            out.close();
+
+        } catch (IOException ex) {
+            if (out != null) closeQuietly(out);
+            runFile.delete();
+            throw ex;
+        } finally {
+            for (Run run : runs) {
+                RunReader reader = (RunReader) run;
+                reader.close();
+                _openRuns.remove(reader);
+            }
+        }
+
+        return runFile;
+    }
+
+    private RunReader openRun(File runFile) throws IOException {
+        RunReader run = new RunReader(runFile);
+        _openRuns.add(run);
+
+        return run;
+    }
+
+    private static void deleteRuns(List<File> runFiles) {
+        for (File runFile : runFiles) {
+            if (!runFile.delete()) {
+                runFile.deleteOnExit();
+            }
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, SpoolEntry entry) throws IOException {
+        out.writeInt(entry.sortKey);
+        out.writeLong(entry.sequence);
+        out.writeInt(entry.record.size());
+        for (Map.Entry<String,String> field : entry.record.entrySet()) {
+            writeString(out, field.getKey());
+            writeString(out, field.getValue());
+        }
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException ex) {
+            // the first error is reported
+        }
+    }
+
+    private static long estimateSize(Map<String,String> record) {
+        long size = RECORD_OVERHEAD;
+
+        for (Map.Entry<String,String> field : record.entrySet()) {
+            size += ENTRY_OVERHEAD + 2 * field.getKey().length();
+            if (field.getValue() != null) size += 2 * field.getValue().length();
+        }
+
+        return size;
+    }
+
+    // strings are written as UTF-8 with an int length prefix; -1 is a null value
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Record plus its position in the total order.
+     */
+    private static class SpoolEntry implements Comparable<SpoolEntry> {
+
+        protected int sortKey;
+        protected long sequence;
+        protected Map<String,String> record;
+
+        public SpoolEntry(int sortKey, long sequence, Map<String,String> record) {
+            this.sortKey = sortKey;
+            this.sequence = sequence;
+            this.record = record;
+        }
+
+        public int compareTo(SpoolEntry e) {
+            if (sortKey < e.sortKey) return -1;
+            else if (sortKey > e.sortKey) return 1;
+            else if (sequence < e.sequence) return -1;
+            else if (sequence > e.sequence) return 1;
+            else return 0;
+        }
+    }
+
+    /**
+     * Sorted run of entries, in memory or on disk.
+     */
+    private interface Run {
+
+        /**
+         * @return next entry, null at the end of the run
+         */
+        SpoolEntry next() throws IOException;
+    }
+
+    private static class BufferRun implements Run {
+
+        private Iterator<SpoolEntry> _entries;
+
+        public BufferRun(Iterator<SpoolEntry> entries) {
+            _entries = entries;
+        }
+
+        public SpoolEntry next() {
+            return _entries.hasNext() ? _entries.next() : null;
+        }
+    }
+
+    /**
+     * Sequential reader over one spilled run file.
+     */
+    private static class RunReader implements Run {
+
+        private DataInputStream _in;
+
+        public RunReader(File runFile) throws IOException {
+            _in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), BUFFER_SIZE));
+        }
+
+        public SpoolEntry next() throws IOException {
+            if (_in == null) return null;
+
+            int sortKey;
+            try {
+                sortKey = _in.readInt();
+            } catch (EOFException ex) {   // end of the run; a record cut short is an error
+                close();
+                return null;
+            }
+
+            long sequence = _in.readLong();
+            int size = _in.readInt();
+
+            Map<String,String> record = new HashMap<String,String>();
+            for (int i = 0; i < size; i++) {
+                String key = readString(_in);
+                record.put(key, readString(_in));
+            }
+
+            return new SpoolEntry(sortKey, sequence, record);
+        }
+
+        public void close() {
+            if (_in == null) return;
+
+            try {
+                _in.close();
+            } catch (IOException ex) {
+                Logger.getLogger(RecordSpool.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            _in = null;
+        }
+    }
+
+    /**
+     * k-way merge over sorted runs; a run that cannot be read fails the read.
+     */
+    public static class Reader {
+
+        private PriorityQueue<RunHead> _heads = new PriorityQueue<RunHead>();
+
+        private Reader(List<Run> runs) throws IOException {
+            for (Run run : runs) {
+                SpoolEntry entry = run.next();
+                if (entry != null) {
+                    _heads.add(new RunHead(entry, run));
+                }
+            }
+        }
+
+        /**
+         * @return next record, null after the last one
+         */
+        public Map<String,String> next() throws IOException {
+            SpoolEntry entry = nextEntry();
+
+            return entry != null ? entry.record : null;
+        }
+
+        private SpoolEntry nextEntry() throws IOException {
+            RunHead head = _heads.poll();
+            if (head == null) return null;
+
+            SpoolEntry next = head.run.next();
+            if (next != null) {
+                _heads.add(new RunHead(next, head.run));
+            }
+
+            return head.entry;
+        }
+    }
+
+    private static class RunHead implements Comparable<RunHead> {
+
+        protected SpoolEntry entry;
+        protected Run run;
+
+        public RunHead(SpoolEntry entry, Run run) {
+            this.entry = entry;
+            this.run = run;
+        }
+
+        public int compareTo(RunHead h) {
+            return entry.compareTo(h.entry);
+        }
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.openrdf.OpenRDFException;
+import org.openrdf.repository.RepositoryException;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Converts the line strip cutout files in a directory or zip archive scan by
+ * scan: the cutouts are grouped by their page_image_original, and all text
+ * blocks of a scan are written to one <scan>.rdf in the output directory,
+ * with one canvas and one image annotation for the scan that every block
+ * region and its line strips are attached to.
+ *
+ * The page image of each cutout is read first, from the start of the file.
+ * Then the blocks of all scans are converted in parallel, in scan order; the
+ * worker that finishes the last block of a scan writes it. A scan with a
+ * block that fails is not written. Outputs are written under a temporary
+ * name and renamed when complete.
+ *
+ * With a storedir, each scan replaces one named graph in the store.
+ *
+ * @author hennieb
+ */
+public class ScanConverter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Navis2OAC> WORKING_STATE = new ThreadLocal<Navis2OAC>() {
+        @Override
+        protected Navis2OAC initialValue() {
+            return new Navis2OAC();
+        }
+    };
+
+    private ConversionOptions _options;
+    private int _threads;
+    private SAXParser _saxParser;
+
+    private AtomicInteger _scansWritten = new AtomicInteger();
+    private AtomicInteger _unreadable = new AtomicInteger();
+
+    /**
+     * @throws IllegalArgumentException for options that do not apply to a scan
+     */
+    public ScanConverter(ConversionOptions options) {
+        if (!options.isLineStrips()) {
+            throw new IllegalArgumentException("merging scans needs --linestrips");
+        }
+        if (options.getIndexFile() != null || options.getTextIndex() != null) {
+            throw new IllegalArgumentException("merging scans cannot be combined with an index file or text index");
+        }
+
+        _threads = options.getThreads();
+        // blocks are converted and scans exported on the worker threads
+        _options = options.toBuilder().setThreads(1).build();
+    }
+
+    /**
+     * @param input directory or zip archive of cutout files, plain or gzipped
+     * @throws ConversionException if the input cannot be read, or cutouts or
+     * scans failed; the other scans are converted anyway
+     */
+    public void convert(File input, File outputDir) throws ConversionException {
+        outputDir.mkdirs();
+
+        List<Cutout> cutouts;
+        try {
+            cutouts = input.isDirectory() ? listDirectory(input) : listArchive(input);
+
+        } catch (IOException ex) {
+            throw new ConversionException("cannot read " + input, ex);
+        }
+
+        long start = System.currentTimeMillis();
+        List<Scan> scans = groupByScan(cutouts, outputDir);
+
+        SesameStore store = _options.getStoreDir() != null ? SesameStore.open(_options.getStoreDir()) : null;
+        ExecutorService executor = Executors.newFixedThreadPool(_threads);
+
+        int blocks = 0;
+        for (final Scan scan : scans) {
+            blocks += scan.cutouts.size();
+            for (int i = 0; i < scan.cutouts.size(); i++) {
+                final int block = i;
+                executor.execute(new Runnable() {
+                    public void run() {
+                        convertBlock(scan, block);
+                    }
+                });
+            }
+        }
+
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        // the shared store stays open, the scans of this run are put on disk now
+        RepositoryException storeError = null;
+        if (store != null) {
+            try {
+                store.sync();
+            } catch (RepositoryException ex) {
+                storeError = ex;
+            }
+            store.close();
+        }
+
+        System.err.println("converted " + _scansWritten.get() + " of " + scans.size() + " scans ("
+                + blocks + " blocks) in " + (System.currentTimeMillis() - start) + " ms");
+
+        int failedScans = scans.size() - _scansWritten.get();
+        if (failedScans > 0 || _unreadable.get() > 0) {
+            throw new ConversionException(failedScans + " of " + scans.size() + " scans failed, "
+                    + _unreadable.get() + " cutouts could not be read");
+        }
+        if (storeError != null) {
+            throw new ConversionException("cannot write store " + _options.getStoreDir(), storeError);
+        }
+    }
+
+    private List<Cutout> listDirectory(File dir) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("cannot list " + dir);
+        Arrays.sort(files);
+
+        List<Cutout> cutouts = new ArrayList<Cutout>();
+        for (File file : files) {
+            if (file.isFile() && !ArchiveConverter.isHidden(file.getName())) {
+                cutouts.add(new Cutout(file.getName(), file, null));
+            }
+        }
+
+        return cutouts;
+    }
+
+    // entries are kept in memory, cutout files are small
+    private List<Cutout> listArchive(File archive) throws IOException {
+        List<Cutout> cutouts = new ArrayList<Cutout>();
+
+        ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(archive), BUFFER_SIZE));
+        try {
+            ZipEntry entry = zip.getNextEntry();
+            while (entry != null) {
+                if (!entry.isDirectory() && !ArchiveConverter.isHidden(entry.getName())) {
+                    cutouts.add(new Cutout(entry.getName(), null, ArchiveConverter.readEntry(zip)));
+                }
+                entry = zip.getNextEntry();
+            }
+        } finally {
+            zip.close();
+        }
+
+        return cutouts;
+    }
+
+    // scans ordered by page image, blocks of a scan in input order
+    private List<Scan> groupByScan(List<Cutout> cutouts, File outputDir) {
+        Map<String,Scan> scans = new TreeMap<String,Scan>();
+
+        for (Cutout cutout : cutouts) {
+            try {
+                String pageImage = readPageImage(cutout.open());
+                if (pageImage == null) throw new ConversionException("no page_image_original in " + cutout.name);
+
+                Scan scan = scans.get(pageImage);
+                if (scan == null) {
+                    scan = new Scan(pageImage);
+                    scans.put(pageImage, scan);
+                }
+                scan.cutouts.add(cutout);
+
+            } catch (ConversionException ex) {
+                _unreadable.incrementAndGet();
+                Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "cannot read " + cutout.name, ex);
+            } catch (IOException ex) {
+                _unreadable.incrementAndGet();
+                Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "cannot read " + cutout.name, ex);
+            }
+        }
+
+        // output names from the page images, made unique
+        Set<String> names = new HashSet<String>();
+        for (Scan scan : scans.values()) {
+            String name = getScanName(scan.pageImage);
+            String uniqueName = name;
+            for (int n = 2; !names.add(uniqueName); n++) {
+                uniqueName = name + "-" + n;
+            }
+
+            scan.blocks = new TripleBuffer[scan.cutouts.size()];
+            scan.remaining = new AtomicInteger(scan.cutouts.size());
+            scan.output = new File(outputDir, uniqueName + ".rdf");
+        }
+
+        return new ArrayList<Scan>(scans.values());
+    }
+
+    /**
+     * Reads page_image_original from the start of a cutout file; the rest of
+     * the file is not parsed.
+     */
+    private String readPageImage(InputSource input) throws ConversionException, IOException {
+        final StringBuilder pageImage = new StringBuilder();
+
+        InputStream in = input.openStream();
+        try {
+            if (_saxParser == null) {
+                _saxParser = SAXParserFactory.newInstance().newSAXParser();
+            } else {
+                _saxParser.reset();
+            }
+
+            _saxParser.parse(in, new DefaultHandler() {
+                private boolean inPageImage = false;
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                    inPageImage = qName.equals("page_image_original");
+                }
+
+                @Override
+                public void characters(char[] ch, int start, int length) {
+                    if (inPageImage) pageImage.append(ch, start, length);
+                }
+
+                @Override
+                public void endElement(String uri, String localName, String qName) throws SAXException {
+                    if (inPageImage) throw new PageImageFound();
+                }
+            });
+
+        } catch (PageImageFound ex) {
+            if (pageImage.length() > 0) return pageImage.toString();
+        } catch (ParserConfigurationException ex) {
+            throw new ConversionException("cannot create XML parser", ex);
+        } catch (SAXException ex) {
+            throw new ConversionException("malformed line strip XML", ex);
+        } finally {
+            in.close();
+        }
+
+        return null;
+    }
+
+    private void convertBlock(Scan scan, int block) {
+        Cutout cutout = scan.cutouts.get(block);
+        TripleBuffer triples = new TripleBuffer();
+
+        Navis2OAC state = WORKING_STATE.get();
+        try {
+            state.convertBlock(_options, cutout.open(), triples);
+
+            if (!scan.pageImage.equals(state.getPageImage())) {
+                throw new ConversionException("page image of " + cutout.name + " changed");
+            }
+            synchronized (scan) {
+                scan.blocks[block] = triples;
+                scan.scanWidth = Math.max(scan.scanWidth, state.getScanWidth());
+                scan.scanHeight = Math.max(scan.scanHeight, state.getScanHeight());
+            }
+
+        } catch (ConversionException ex) {
+            scan.failed = true;
+            Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "conversion of " + cutout.name + " failed", ex);
+        } catch (IOException ex) {
+            scan.failed = true;
+            Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "conversion of " + cutout.name + " failed", ex);
+        } catch (RuntimeException ex) {
+            scan.failed = true;
+            Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "conversion of " + cutout.name + " failed", ex);
+        } finally {
+            state.reset();
+        }
+
+        // the last block of the scan writes it
+        if (scan.remaining.decrementAndGet() == 0) {
+            if (scan.failed) {
+                Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "scan {0} not written, a block failed", scan.pageImage);
+            } else {
+                writeScan(scan);
+            }
+        }
+    }
+
+    private void writeScan(Scan scan) {
+        File partialOutput = new File(scan.output.getPath() + ".partial");
+
+        SesameStore store;
+        if (_options.getStoreDir() != null) {
+            store = SesameStore.open(_options.getStoreDir());
+        } else {
+            store = new SesameStore(new TripleBuffer());
+        }
+
+        try {
+            store.startGraph(getScanGraphURI(scan.pageImage));
+
+            Navis2OAC.addScanTriples(store, scan.pageImage, scan.scanWidth, scan.scanHeight);
+            for (int i = 0; i < scan.blocks.length; i++) {
+                store.addTriples(scan.blocks[i]);
+                scan.blocks[i] = null;
+            }
+
+            store.commitGraph();
+            if (_options.getGraphStore() != null) {
+                store.putGraph(_options.getGraphStore());
+            }
+            store.exportToRDFXML(RDFSink.toFile(partialOutput), 1);
+
+            ArchiveConverter.publish(partialOutput, scan.output);
+            _scansWritten.incrementAndGet();
+
+        } catch (IOException ex) {
+            partialOutput.delete();
+            Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "cannot write scan " + scan.pageImage, ex);
+        } catch (OpenRDFException ex) {
+            partialOutput.delete();
+            Logger.getLogger(ScanConverter.class.getName()).log(Level.SEVERE, "cannot write scan " + scan.pageImage, ex);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Named graph of all blocks of a scan.
+     */
+    private static URI getScanGraphURI(String pageImage) {
+        return URI.create(SesameStore.CATCHPLUS + "graph/" + UUID.nameUUIDFromBytes(("scan/" + pageImage).getBytes()));
+    }
+
+    // last path segment of the page image, without extension
+    private static String getScanName(String pageImage) {
+        String name = pageImage.substring(pageImage.lastIndexOf('/') + 1);
+
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        if (name.length() == 0) name = "scan";
+
+        return name.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * One cutout file, from a directory or from an archive.
+     */
+    private static class Cutout {
+
+        protected String name;
+        protected File file;
+        protected byte[] data;
+
+        public Cutout(String name, File file, byte[] data) {
+            this.name = name;
+            this.file = file;
+            this.data = data;
+        }
+
+        public InputSource open() throws IOException {
+            if (file != null) return InputSource.fromFile(file);
+            else return ArchiveConverter.openEntry(name, data);
+        }
+    }
+
+    /**
+     * The cutouts of one scan and their converted blocks.
+     */
+    private static class Scan {
+
+        protected String pageImage;
+        protected List<Cutout> cutouts = new ArrayList<Cutout>();
+        protected File output;
+
+        protected TripleBuffer[] blocks;
+        protected AtomicInteger remaining;
+        protected volatile boolean failed = false;
+        protected int scanWidth = 0;
+        protected int scanHeight = 0;
+
+        public Scan(String pageImage) {
+            this.pageImage = pageImage;
+        }
+    }
+
+    /**
+     * Ends the parse of a cutout once its page image is read.
+     */
+    private static class PageImageFound extends SAXException {
+
+        private static final long serialVersionUID = 1L;
+
+        public PageImageFound() {
+            super("page image found");
+        }
+    }
+}
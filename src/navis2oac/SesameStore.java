@@ -4,27 +4,56 @@
 package navis2oac;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintStream;
-import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.openrdf.OpenRDFException;
 import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
 import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
 import org.openrdf.model.vocabulary.RDF;
 import org.openrdf.repository.Repository;
 import org.openrdf.repository.RepositoryConnection;
 import org.openrdf.repository.RepositoryException;
+import org.openrdf.repository.RepositoryResult;
 import org.openrdf.repository.sail.SailRepository;
+import org.openrdf.rio.RDFHandler;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.rdfxml.RDFXMLWriter;
+import org.openrdf.sail.SailException;
 import org.openrdf.sail.memory.MemoryStore;
 
 /**
+ * RDF store of the conversion. Backed by a Sesame repository, by a
+ * TripleBuffer, or streaming triples straight to the output.
+ *
+ * A repository backed store can be filled by several threads at the same
+ * time. Each thread collects the triples of its current graph on its own, in a
+ * TripleBuffer; commitGraph hands the graph to a single committer thread that
+ * owns the repository connection and applies the graphs of all waiting
+ * threads in one transaction. Exports read through connections of their own.
+ * SesameStore.open shares one store per data directory among the conversions
+ * of a process; it stays open until the process ends.
  *
  * @author hennieb
  */
@@ -81,27 +110,95 @@ public class SesameStore {
     public static final URI CNT_CHARACTERENCODING = URI.create("http://www.w3.org/2008/content#characterEncoding");
 
 
+    // below this number of triples a single threaded export is faster
+    private static final int PARALLEL_EXPORT_THRESHOLD = 10000;
+
+    // most graphs applied in one transaction by the committer
+    private static final int MAX_GRAPHS_PER_COMMIT = 64;
+
+    // milliseconds between a commit and the write of a persistent store to disk
+    private static final long SYNC_DELAY = 10000;
+
+    private static final PendingGraph END_OF_COMMITS = new PendingGraph(null, false, null);
+
+    // stores opened with open(dataDir), shut down when the process ends
+    private static final Map<File,SesameStore> SHARED_STORES = new HashMap<File,SesameStore>();
+
     private Repository localRDFRepository;
+    private MemoryStore memoryStore;
     private ValueFactory f;
-    RepositoryConnection con;
+
+    // used by the committer thread only
+    private RepositoryConnection con;
+    private BlockingQueue<PendingGraph> commitQueue;
+    private Thread committer;
+    private volatile boolean committerDead = false;
+    private boolean closed = false;     // guarded by commitQueue
+
+    private boolean shared = false;
+
+    // set when triples are written straight to output instead of to the repository
+    private RDFXMLWriter streamWriter;
+    private Writer streamOut;
+    private RDFSink streamSink;
+    private RDFHandlerException streamError;
+
+    // set when triples are kept in a triple buffer instead of a repository
+    private TripleBuffer tripleBuffer;
+
+    // graph and triples of each thread that adds triples
+    private ThreadLocal<Producer> producers = new ThreadLocal<Producer>() {
+        @Override
+        protected Producer initialValue() {
+            return new Producer();
+        }
+    };
 
     public SesameStore() {
+        this((File) null);
+    }
+
+    /**
+     * Store without a repository: triples are kept in a TripleBuffer, which
+     * takes a fraction of the memory per triple of a MemoryStore. Queries are
+     * not possible, only export; the only graph is the current graph.
+     */
+    public SesameStore(TripleBuffer tripleBuffer) {
+        this.tripleBuffer = tripleBuffer;
+        f = new ValueFactoryImpl();
+    }
+
+    /**
+     * A persistent store is a MemoryStore: initializing reads the whole data
+     * file, and every write to disk rewrites it, which costs O(store) however
+     * small the change. Writes are therefore not done per commit but at most
+     * once per SYNC_DELAY after commits, on sync and on close; after a crash
+     * the commits of the last SYNC_DELAY may be lost.
+     *
+     * @param dataDir directory in which the store is persisted, or null for a
+     * store that only lives in memory
+     */
+    public SesameStore(File dataDir) {
         System.err.println("creating and initializing RDF store");
 
-        localRDFRepository = new SailRepository(new MemoryStore());
+        if (dataDir != null) {
+            memoryStore = new MemoryStore(dataDir);
+            memoryStore.setSyncDelay(SYNC_DELAY);
+        } else {
+            memoryStore = new MemoryStore();
+        }
+        localRDFRepository = new SailRepository(memoryStore);
 
-        PrintStream original = System.out;
-        System.setOut(System.err);
+        // Sesame logs to stderr, see logback.xml, stdout may carry the RDF output
         try {
-            
             localRDFRepository.initialize();
 
         } catch (RepositoryException ex) {
             Logger.getLogger(Navis2OAC.class.getName()).log(Level.SEVERE, null, ex);
         }
-        System.setOut(original);
 
-        f = localRDFRepository.getValueFactory();
+        // values are created by all producer threads
+        f = new ValueFactoryImpl();
 
         try {
             con = localRDFRepository.getConnection();
@@ -109,19 +206,62 @@ public class SesameStore {
         } catch (RepositoryException ex) {
             Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, null, ex);
         }
+
+        commitQueue = new LinkedBlockingQueue<PendingGraph>();
+        committer = new Thread(new Runnable() {
+            public void run() {
+                commitGraphs();
+            }
+        }, "navis2oac-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Opens the persistent store in dataDir, shared with the other users of
+     * that store in this process. The store is loaded once and stays open
+     * until the process ends, so conversions and batches do not each pay a
+     * full load and write of it; close only releases it for the calling
+     * thread. Call sync to have the conversions so far on disk.
+     */
+    public static SesameStore open(File dataDir) {
+        File key = dataDir.getAbsoluteFile();
+
+        synchronized (SHARED_STORES) {
+            SesameStore store = SHARED_STORES.get(key);
+            if (store == null) {
+                if (SHARED_STORES.isEmpty()) {
+                    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                        public void run() {
+                            shutDownSharedStores();
+                        }
+                    }, "navis2oac-store-shutdown"));
+                }
+
+                store = new SesameStore(dataDir);
+                store.shared = true;
+                SHARED_STORES.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    // writes the shared stores to disk when the process ends
+    private static void shutDownSharedStores() {
+        synchronized (SHARED_STORES) {
+            for (SesameStore store : SHARED_STORES.values()) {
+                store.shutDown();
+            }
+            SHARED_STORES.clear();
+        }
     }
 
     public void addTriple(URI subject, URI predicate, String literal) {
         org.openrdf.model.URI s = f.createURI(subject.toString());
         org.openrdf.model.URI p = f.createURI(predicate.toString());
         Literal l = f.createLiteral(literal);
-        
-        try {
-            con.add(s, p, l);
 
-        } catch (RepositoryException ex) {
-            Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        add(s, p, l);
     }
 
     public void addTriple(URI subject, URI predicate, URI object) {
@@ -137,36 +277,426 @@ public class SesameStore {
 
         org.openrdf.model.URI o = f.createURI(object.toString());
 
+        add(s, p, o);
+    }
+
+    private void add(Resource s, org.openrdf.model.URI p, Value o) {
+        Producer producer = producers.get();
+        producer.tripleCount++;
+
+        if (streamWriter != null) {
+            try {
+                if (streamError == null) streamWriter.handleStatement(f.createStatement(s, p, o));
+
+            } catch (RDFHandlerException ex) {
+                streamError = ex;   // reported by endStreaming
+            }
+            return;
+        }
+
+        if (tripleBuffer != null) {
+            tripleBuffer.add(s, p, o);
+            return;
+        }
+
+        // without startGraph, triples go to the default graph
+        if (producer.pending == null) producer.pending = new TripleBuffer();
+        producer.pending.add(s, p, o);
+    }
+
+    /**
+     * Adds all triples of a buffer, for instance the triples of one line strip
+     * block converted on another thread.
+     */
+    public void addTriples(TripleBuffer triples) {
+        for (Statement st : triples) {
+            add(st.getSubject(), st.getPredicate(), st.getObject());
+        }
+    }
+
+    /**
+     * @return number of triples added to this store by the calling thread
+     */
+    public int getTripleCount() {
+        return producers.get().tripleCount;
+    }
+
+    /**
+     * Starts replacing the contents of a named graph: the graph is emptied and
+     * all triples added by this thread until commitGraph are put in it, in one
+     * transaction. Other graphs in the store are not touched, so replacing a
+     * page costs O(page) in memory; a persistent store is written to disk as
+     * a whole, but not per page, see SesameStore(File).
+     */
+    public void startGraph(URI graphURI) {
+        Producer producer = producers.get();
+        producer.graph = f.createURI(graphURI.toString());
+
+        if (tripleBuffer != null) {
+            tripleBuffer.clear();
+            return;
+        }
+
+        producer.pending = new TripleBuffer();
+        producer.replace = true;
+    }
+
+    /**
+     * Commits the graph of this thread; returns when it is in the repository.
+     */
+    public void commitGraph() throws RepositoryException {
+        Producer producer = producers.get();
+        if (tripleBuffer != null || producer.pending == null) return;
+
+        PendingGraph pending = new PendingGraph(producer.graph, producer.replace, producer.pending);
+        producer.pending = null;
+        producer.replace = false;
+
+        synchronized (commitQueue) {
+            if (closed) throw new RepositoryException("store is closed, cannot commit " + pending.graph);
+            if (committerDead) throw new RepositoryException("store committer failed, cannot commit " + pending.graph);
+            commitQueue.add(pending);
+        }
+        try {
+            pending.committed.await();
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("interrupted while committing " + pending.graph);
+        }
+
+        if (pending.error != null) throw pending.error;
+    }
+
+    // committer thread: applies waiting graphs in groups, until close; an
+    // unexpected error fails its group and stops the committer
+    private void commitGraphs() {
+        List<PendingGraph> group = new ArrayList<PendingGraph>();
+
+        while (true) {
+            try {
+                group.add(commitQueue.take());
+
+            } catch (InterruptedException ex) {
+                continue;   // only close ends the committer
+            }
+            commitQueue.drainTo(group, MAX_GRAPHS_PER_COMMIT - 1);
+
+            boolean end = group.remove(END_OF_COMMITS);
+
+            try {
+                applyGroup(group);
+
+            } catch (Throwable t) {
+                Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, "store committer failed", t);
+
+                // graphs queued meanwhile fail as well, later commits are refused
+                synchronized (commitQueue) {
+                    committerDead = true;
+                    commitQueue.drainTo(group);
+                }
+                group.remove(END_OF_COMMITS);
+                for (PendingGraph pending : group) {
+                    if (pending.error == null) pending.error = new RepositoryException("store committer failed", t);
+                }
+                end = true;
+
+            } finally {
+                for (PendingGraph pending : group) {
+                    pending.committed.countDown();
+                }
+                group.clear();
+            }
+
+            if (end) return;
+        }
+    }
+
+    private void applyGroup(List<PendingGraph> group) {
         try {
-            con.add(s, p, o);
+            apply(group);
 
         } catch (RepositoryException ex) {
-            Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, null, ex);
+            // one bad graph must not fail the others in its group
+            for (PendingGraph pending : group) {
+                try {
+                    apply(Collections.singletonList(pending));
+                } catch (RepositoryException e) {
+                    pending.error = e;
+                }
+            }
         }
     }
 
-    public void exportToRDFXML(File exportFile) {
+    private void apply(List<PendingGraph> graphs) throws RepositoryException {
+        if (graphs.isEmpty()) return;
+
+        con.setAutoCommit(false);
         try {
-            BufferedWriter writer = null;
-            String fileName = "/Users/HennieB/Documents/CODA/CODE/resultfiles/" + "test.rdf";
-            if (exportFile != null) {
-                fileName = exportFile.getAbsolutePath();
-                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName), "UTF8"));
-            } else {
-                writer = new BufferedWriter(new OutputStreamWriter(System.out, "UTF8"));
+            for (PendingGraph pending : graphs) {
+                if (pending.replace) con.clear(pending.graph);
+
+                for (Statement st : pending.triples) {
+                    if (pending.graph != null) {
+                        con.add(st.getSubject(), st.getPredicate(), st.getObject(), pending.graph);
+                    } else {
+                        con.add(st.getSubject(), st.getPredicate(), st.getObject());
+                    }
+                }
             }
-  
-            RDFXMLWriter rdfDocWriter = new RDFXMLWriter(writer);
-            con.export(rdfDocWriter);
+            con.commit();
+
+        } catch (RepositoryException ex) {
+            con.rollback();
+            throw ex;
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Writes a persistent store to disk now, instead of SYNC_DELAY after the
+     * last commit. Costs O(store).
+     */
+    public void sync() throws RepositoryException {
+        if (memoryStore == null) return;
+
+        try {
+            memoryStore.sync();
+        } catch (SailException ex) {
+            throw new RepositoryException("cannot write store to disk", ex);
+        }
+    }
+
+    /**
+     * Replaces the current graph in a remote store with its contents here, with
+     * a PUT following the SPARQL 1.1 Graph Store HTTP Protocol. The server swaps
+     * the graph in one request.
+     */
+    public void putGraph(String graphStoreURL) throws IOException, OpenRDFException {
+        org.openrdf.model.URI graph = producers.get().graph;
+        HttpURLConnection connection = null;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            Writer writer = new BufferedWriter(new OutputStreamWriter(buffer, "UTF8"));
+            export(new RDFXMLWriter(writer));
+            byte[] body = buffer.toByteArray();
+
+            String separator = graphStoreURL.indexOf('?') >= 0 ? "&" : "?";
+            URL url = new URL(graphStoreURL + separator + "graph=" + URLEncoder.encode(graph.toString(), "UTF-8"));
+
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/rdf+xml; charset=UTF-8");
+            connection.setFixedLengthStreamingMode(body.length);
+
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                throw new IOException("replacing graph " + graph + " failed: " + status + " " + connection.getResponseMessage());
+            }
+
+        } finally {
+            if (connection != null) connection.disconnect();
+        }
+    }
+
+    /**
+     * Closes the connection and shuts down the repository, which writes a
+     * persistent store to disk. A store from open is only released for the
+     * calling thread, it is shut down when the process ends. Commits after
+     * close fail.
+     */
+    public void close() {
+        producers.remove();
+
+        if (tripleBuffer != null) {
+            tripleBuffer.clear();
+            return;
+        }
+
+        if (!shared) shutDown();
+    }
+
+    private void shutDown() {
+        synchronized (commitQueue) {
+            if (closed) return;
+            closed = true;
+            commitQueue.add(END_OF_COMMITS);
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            con.close();
+            localRDFRepository.shutDown();
 
         } catch (RepositoryException ex) {
             Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (RDFHandlerException ex) {
-            Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (FileNotFoundException ex) {
-            Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (UnsupportedEncodingException ex) {
-            Logger.getLogger(SesameStore.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Write all triples added from now on directly to the sink, bypassing the
+     * repository. Keeps heap usage independent of the number of triples, for
+     * use in bounded memory mode.
+     */
+    public void startStreaming(RDFSink sink) throws IOException, OpenRDFException {
+        f = new ValueFactoryImpl();
+
+        streamSink = sink;
+        streamOut = sink.openWriter();
+        streamError = null;
+        streamWriter = new RDFXMLWriter(streamOut);
+        streamWriter.startRDF();
+    }
+
+    /**
+     * Finishes the streamed output.
+     *
+     * @throws OpenRDFException the first error in writing a triple, if any
+     */
+    public void endStreaming() throws IOException, OpenRDFException {
+        if (streamWriter == null) return;
+
+        try {
+            if (streamError != null) throw streamError;
+            streamWriter.endRDF();
+
+        } finally {
+            streamSink.closeWriter(streamOut);
+            streamWriter = null;
+            streamOut = null;
+            streamSink = null;
+        }
+    }
+
+    public void exportToRDFXML(RDFSink sink) throws IOException, OpenRDFException {
+        Writer writer = sink.openWriter();
+        try {
+            export(new RDFXMLWriter(writer));
+        } finally {
+            sink.closeWriter(writer);
+        }
+    }
+
+    /**
+     * Export on several threads, see ParallelExporter. Small graphs are exported
+     * on the calling thread.
+     */
+    public void exportToRDFXML(RDFSink sink, int threads) throws IOException, OpenRDFException {
+        long size = tripleBuffer != null ? tripleBuffer.size() : size();
+        if (threads <= 1 || size < PARALLEL_EXPORT_THRESHOLD) {
+            exportToRDFXML(sink);
+            return;
+        }
+
+        if (tripleBuffer == null) commitGraph();
+
+        // statements are handed to the exporter as they are read, a second copy of the graph is never held
+        Writer writer = sink.openWriter();
+        ParallelExporter exporter = new ParallelExporter(threads, writer);
+        try {
+            if (tripleBuffer != null) {
+                for (Statement st : tripleBuffer) {
+                    exporter.add(st);
+                }
+            } else {
+                RepositoryConnection reader = localRDFRepository.getConnection();
+                try {
+                    RepositoryResult<Statement> statements = reader.getStatements(null, null, null, false, getContexts());
+                    try {
+                        while (statements.hasNext()) {
+                            exporter.add(statements.next());
+                        }
+                    } finally {
+                        statements.close();
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            exporter.finish();
+
+        } finally {
+            exporter.close();
+            sink.closeWriter(writer);
+        }
+    }
+
+    /**
+     * Reports the triples of the current graph to handler. Triples added but
+     * not committed are committed first.
+     */
+    public void export(RDFHandler handler) throws OpenRDFException {
+        if (tripleBuffer != null) {
+            tripleBuffer.write(handler);
+            return;
+        }
+
+        commitGraph();
+
+        RepositoryConnection reader = localRDFRepository.getConnection();
+        try {
+            reader.export(handler, getContexts());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private long size() throws RepositoryException {
+        commitGraph();
+
+        RepositoryConnection reader = localRDFRepository.getConnection();
+        try {
+            return reader.size(getContexts());
+        } finally {
+            reader.close();
+        }
+    }
+
+    // export is limited to the current graph of this thread, a persistent store may hold other pages
+    private Resource[] getContexts() {
+        org.openrdf.model.URI graph = producers.get().graph;
+
+        if (graph != null) return new Resource[] {graph};
+        else return new Resource[0];
+    }
+
+    /**
+     * Graph and triples of one producer thread.
+     */
+    private static class Producer {
+
+        // named graph that triples are added to, null for the default graph
+        protected org.openrdf.model.URI graph;
+        protected TripleBuffer pending;
+        protected boolean replace = false;
+        protected int tripleCount = 0;
+    }
+
+    /**
+     * Graph handed to the committer.
+     */
+    private static class PendingGraph {
+
+        protected org.openrdf.model.URI graph;
+        protected boolean replace;
+        protected TripleBuffer triples;
+        protected CountDownLatch committed = new CountDownLatch(1);
+        protected RepositoryException error;
+
+        public PendingGraph(org.openrdf.model.URI graph, boolean replace, TripleBuffer triples) {
+            this.graph = graph;
+            this.replace = replace;
+            this.triples = triples;
         }
     }
 }
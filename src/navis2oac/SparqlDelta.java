@@ -0,0 +1,127 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+import org.openrdf.OpenRDFException;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFHandlerBase;
+
+/**
+ * Writes the changes of a page since its previous conversion as a SPARQL 1.1
+ * Update request. Annotations are compared by their PageSnapshot entries: the
+ * nodes of removed and changed annotations are deleted from the page graph,
+ * the triples of added and changed annotations are inserted into it. Applied
+ * to a store holding the previous conversion, the page graph becomes the one
+ * of this conversion; the request only grows with the number of changed
+ * annotations.
+ *
+ * @author hennieb
+ */
+public class SparqlDelta {
+
+    private SparqlDelta() {
+    }
+
+    /**
+     * @param store store with the triples of the current conversion of the page
+     */
+    public static void write(File file, URI graph, PageSnapshot previous, PageSnapshot current,
+            SesameStore store) throws IOException, OpenRDFException {
+        Set<String> deletedNodes = new HashSet<String>();
+        for (PageSnapshot.Annotation annotation : previous.getAnnotations()) {
+            PageSnapshot.Annotation now = current.get(annotation.getKey());
+            if (now == null || !now.sameAs(annotation)) addAll(deletedNodes, annotation.getNodes());
+        }
+
+        final Set<String> insertedNodes = new HashSet<String>();
+        for (PageSnapshot.Annotation annotation : current.getAnnotations()) {
+            PageSnapshot.Annotation before = previous.get(annotation.getKey());
+            if (before == null || !before.sameAs(annotation)) addAll(insertedNodes, annotation.getNodes());
+        }
+
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            String graphRef = "<" + graph + ">";
+
+            if (!deletedNodes.isEmpty()) {
+                out.write("DELETE { GRAPH " + graphRef + " { ?s ?p ?o } }\n");
+                out.write("WHERE { GRAPH " + graphRef + " {\n  VALUES ?s {");
+                for (String node : deletedNodes) {
+                    out.write(" <" + node + ">");
+                }
+                out.write(" }\n  ?s ?p ?o\n} }");
+            }
+
+            if (!insertedNodes.isEmpty()) {
+                if (!deletedNodes.isEmpty()) out.write(" ;\n");
+                out.write("INSERT DATA { GRAPH " + graphRef + " {\n");
+
+                store.export(new RDFHandlerBase() {
+                    @Override
+                    public void handleStatement(Statement st) throws RDFHandlerException {
+                        if (!insertedNodes.contains(st.getSubject().stringValue())) return;
+
+                        try {
+                            out.write(toSparql(st.getSubject()) + " " + toSparql(st.getPredicate())
+                                    + " " + toSparql(st.getObject()) + " .\n");
+                        } catch (IOException ex) {
+                            throw new RDFHandlerException(ex);
+                        }
+                    }
+                });
+
+                out.write("} }");
+            }
+            out.write("\n");
+
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void addAll(Set<String> set, String[] values) {
+        for (String value : values) {
+            set.add(value);
+        }
+    }
+
+    private static String toSparql(Value value) {
+        if (!(value instanceof Literal)) return "<" + value.stringValue() + ">";
+
+        Literal literal = (Literal) value;
+        StringBuilder term = new StringBuilder("\"");
+        String label = literal.getLabel();
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            switch (c) {
+                case '\\': term.append("\\\\"); break;
+                case '"': term.append("\\\""); break;
+                case '\n': term.append("\\n"); break;
+                case '\r': term.append("\\r"); break;
+                case '\t': term.append("\\t"); break;
+                default: term.append(c);
+            }
+        }
+        term.append('"');
+
+        if (literal.getLanguage() != null) term.append('@').append(literal.getLanguage());
+        else if (literal.getDatatype() != null) term.append("^^<").append(literal.getDatatype()).append('>');
+
+        return term.toString();
+    }
+}
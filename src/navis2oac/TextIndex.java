@@ -0,0 +1,229 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Inverted word index over the text of word zone segments, and of line
+ * segments without word zones, written by TextIndexWriter as a side output
+ * of conversion. Maps each token to the page, segment, character offset in
+ * the page text and rect of its occurrences, so that a word search can
+ * highlight the hits on the scan.
+ *
+ * An index is a directory of segment files, each with this layout:
+ *
+ * <pre>
+ * magic, version, document count
+ * documents    per segment with text: page id, segment id, text offset, x, y, w, h
+ * terms        sorted; per term: term, posting count, (document, char offset) per posting
+ * ""           end of terms
+ * </pre>
+ *
+ * Opening reads the document tables and the positions of the posting lists;
+ * postings are read from memory-mapped segment files when searched.
+ *
+ * @author hennieb
+ */
+public class TextIndex {
+
+    static final int MAGIC = 0x4E325458; // "N2TX"
+    static final int VERSION = 1;
+    static final String SEGMENT_PREFIX = "segment-";
+    static final String SEGMENT_SUFFIX = ".tix";
+
+    private List<Segment> _segments = new ArrayList<Segment>();
+
+    public TextIndex(File indexDir) throws IOException {
+        for (File segmentFile : listSegments(indexDir)) {
+            _segments.add(new Segment(segmentFile));
+        }
+    }
+
+    /**
+     * @return all occurrences of a word, case insensitive
+     */
+    public List<Hit> search(String word) {
+        String term = normalize(word);
+        List<Hit> hits = new ArrayList<Hit>();
+
+        for (Segment segment : _segments) {
+            segment.search(term, hits);
+        }
+
+        return hits;
+    }
+
+    static String normalize(String token) {
+        return token.toLowerCase(Locale.ROOT);
+    }
+
+    static File[] listSegments(File indexDir) {
+        File[] segments = indexDir.listFiles(new FileFilter() {
+            public boolean accept(File f) {
+                return f.getName().startsWith(SEGMENT_PREFIX) && f.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (segments == null) segments = new File[0];
+
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    static void readHeader(DataInputStream in, File segmentFile) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException(segmentFile + " is not a text index segment, or has an unsupported version");
+        }
+    }
+
+    static Hit readDocument(DataInputStream in) throws IOException {
+        return new Hit(in.readUTF(), in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    /**
+     * One occurrence of a word, or, in the document table, one segment.
+     */
+    public static class Hit {
+
+        private String pageID;
+        private String segmentID;
+        private int textOffset;
+        private int x;
+        private int y;
+        private int w;
+        private int h;
+
+        public Hit(String pageID, String segmentID, int textOffset, int x, int y, int w, int h) {
+            this.pageID = pageID;
+            this.segmentID = segmentID;
+            this.textOffset = textOffset;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+        }
+
+        public String getPageID() { return pageID; }
+        public String getSegmentID() { return segmentID; }
+        public int getTextOffset() { return textOffset; }
+        public int getX() { return x; }
+        public int getY() { return y; }
+        public int getW() { return w; }
+        public int getH() { return h; }
+
+        @Override
+        public String toString() {
+            return pageID + " " + segmentID + " @" + textOffset + " rect " + x + "," + y + "," + w + "," + h;
+        }
+    }
+
+    /**
+     * One opened segment file.
+     */
+    private static class Segment {
+
+        private Hit[] _documents;
+        private Map<String,Integer> _postingPositions = new HashMap<String,Integer>();
+        private MappedByteBuffer _data;
+
+        public Segment(File segmentFile) throws IOException {
+            CountingInputStream counter = new CountingInputStream(new FileInputStream(segmentFile));
+            DataInputStream in = new DataInputStream(counter);
+            try {
+                readHeader(in, segmentFile);
+
+                _documents = new Hit[in.readInt()];
+                for (int i = 0; i < _documents.length; i++) {
+                    _documents[i] = readDocument(in);
+                }
+
+                String term = in.readUTF();
+                while (term.length() > 0) {
+                    _postingPositions.put(term, (int) counter.count);
+                    int remaining = in.readInt() * 8;
+                    while (remaining > 0) {
+                        int skipped = in.skipBytes(remaining);
+                        if (skipped <= 0) throw new IOException(segmentFile + " is truncated");
+                        remaining -= skipped;
+                    }
+
+                    term = in.readUTF();
+                }
+
+            } finally {
+                in.close();
+            }
+
+            RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+            try {
+                _data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } finally {
+                file.close();
+            }
+        }
+
+        public void search(String term, List<Hit> hits) {
+            Integer position = _postingPositions.get(term);
+            if (position == null) return;
+
+            int postingCount = _data.getInt(position);
+            for (int i = 0; i < postingCount; i++) {
+                Hit document = _documents[_data.getInt(position + 4 + i * 8)];
+                int charOffset = _data.getInt(position + 8 + i * 8);
+
+                hits.add(new Hit(document.pageID, document.segmentID, charOffset,
+                        document.x, document.y, document.w, document.h));
+            }
+        }
+    }
+
+    /**
+     * Buffered input that keeps track of the number of bytes consumed.
+     */
+    private static class CountingInputStream extends BufferedInputStream {
+
+        protected long count = 0;
+
+        public CountingInputStream(FileInputStream in) {
+            super(in, 64 * 1024);
+        }
+
+        @Override
+        public synchronized int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public synchronized long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
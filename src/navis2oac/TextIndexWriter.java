@@ -0,0 +1,316 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Builds the inverted word index of a TextIndex directory. Tokens of the
+ * added segments are collected in memory and written as a new, sorted index
+ * segment file when flushed, or when the buffer gets large. Segment files
+ * are merged by size tier: files are in the same tier when their sizes are
+ * within a factor MERGE_FACTOR of each other, and once a tier holds
+ * MERGE_FACTOR files they are merged into one file of the next tier, with a
+ * streaming merge of their sorted term lists. Each posting is rewritten
+ * once per tier, so a batch of conversions can add page by page at an
+ * amortized cost of O(page * log(pages)).
+ *
+ * @author hennieb
+ */
+public class TextIndexWriter {
+
+    private static final int MAX_BUFFERED_POSTINGS = 100000;
+    private static final int MERGE_FACTOR = 8;
+    private static final long MIN_TIER_SIZE = 64 * 1024;
+
+    private File _indexDir;
+
+    // documents (segments with text) and postings of the segment being built
+    private List<TextIndex.Hit> _documents = new ArrayList<TextIndex.Hit>();
+    private TreeMap<String,List<int[]>> _postings = new TreeMap<String,List<int[]>>();
+    private int _postingCount = 0;
+
+    public TextIndexWriter(File indexDir) {
+        _indexDir = indexDir;
+        _indexDir.mkdirs();
+    }
+
+    /**
+     * Adds the tokens of the text of one segment.
+     *
+     * @param textOffset offset of text in the full page text
+     */
+    public void addSegment(String pageID, String segmentID, String text, int textOffset,
+            int x, int y, int w, int h) throws IOException {
+        if (text == null) return;
+
+        int document = _documents.size();
+        _documents.add(new TextIndex.Hit(pageID, segmentID, textOffset, x, y, w, h));
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                String token = TextIndex.normalize(text.substring(start, i));
+                List<int[]> postings = _postings.get(token);
+                if (postings == null) {
+                    postings = new ArrayList<int[]>();
+                    _postings.put(token, postings);
+                }
+                postings.add(new int[] {document, textOffset >= 0 ? textOffset + start : -1});
+                _postingCount++;
+                start = -1;
+            }
+        }
+
+        if (_postingCount > MAX_BUFFERED_POSTINGS) flush();
+    }
+
+    /**
+     * Writes the buffered tokens as a new segment file, then merges the
+     * segment files of any tier that is full.
+     */
+    public void flush() throws IOException {
+        if (!_documents.isEmpty()) {
+            File temp = File.createTempFile(TextIndex.SEGMENT_PREFIX, ".tmp", _indexDir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+            try {
+                writeHeader(out, _documents.size());
+                for (TextIndex.Hit document : _documents) {
+                    writeDocument(out, document);
+                }
+                for (Map.Entry<String,List<int[]>> term : _postings.entrySet()) {
+                    out.writeUTF(term.getKey());
+                    out.writeInt(term.getValue().size());
+                    for (int[] posting : term.getValue()) {
+                        out.writeInt(posting[0]);
+                        out.writeInt(posting[1]);
+                    }
+                }
+                out.writeUTF("");   // end of terms
+
+            } finally {
+                out.close();
+            }
+            publish(temp);
+
+            _documents.clear();
+            _postings.clear();
+            _postingCount = 0;
+        }
+
+        // parallel conversions may share an index directory, only one of them merges
+        synchronized (TextIndexWriter.class) {
+            File[] tierSegments = findFullTier(TextIndex.listSegments(_indexDir));
+            while (tierSegments != null) {   // a merge may fill the next tier
+                merge(tierSegments);
+                tierSegments = findFullTier(TextIndex.listSegments(_indexDir));
+            }
+        }
+    }
+
+    // the first MERGE_FACTOR segments of the lowest tier that has that many, or null
+    private static File[] findFullTier(File[] segments) {
+        Map<Integer,List<File>> tiers = new TreeMap<Integer,List<File>>();
+
+        for (File segment : segments) {
+            Integer tier = getTier(segment.length());
+            List<File> tierSegments = tiers.get(tier);
+            if (tierSegments == null) {
+                tierSegments = new ArrayList<File>();
+                tiers.put(tier, tierSegments);
+            }
+            tierSegments.add(segment);
+
+            if (tierSegments.size() == MERGE_FACTOR) {
+                return tierSegments.toArray(new File[MERGE_FACTOR]);
+            }
+        }
+
+        return null;
+    }
+
+    private static int getTier(long size) {
+        int tier = 0;
+        for (long limit = MIN_TIER_SIZE; size >= limit; limit *= MERGE_FACTOR) {
+            tier++;
+        }
+
+        return tier;
+    }
+
+    /**
+     * Merges segment files into one: the document tables are concatenated,
+     * the term lists are merged, remapping document numbers on the way.
+     */
+    private void merge(File[] segments) throws IOException {
+        int[] documentBase = new int[segments.length];
+        int documentCount = 0;
+        for (int i = 0; i < segments.length; i++) {
+            documentBase[i] = documentCount;
+            documentCount += readDocumentCount(segments[i]);
+        }
+
+        File temp = File.createTempFile(TextIndex.SEGMENT_PREFIX, ".tmp", _indexDir);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+        List<SegmentReader> readers = new ArrayList<SegmentReader>();
+        try {
+            writeHeader(out, documentCount);
+
+            // documents, in segment order
+            for (int i = 0; i < segments.length; i++) {
+                SegmentReader reader = new SegmentReader(segments[i], documentBase[i]);
+                readers.add(reader);
+                for (int d = 0; d < reader.documentCount; d++) {
+                    writeDocument(out, reader.readDocument());
+                }
+                reader.nextTerm();
+            }
+
+            // terms, merged
+            PriorityQueue<SegmentReader> heads = new PriorityQueue<SegmentReader>();
+            for (SegmentReader reader : readers) {
+                if (reader.term != null) heads.add(reader);
+            }
+
+            while (!heads.isEmpty()) {
+                String term = heads.peek().term;
+
+                List<SegmentReader> withTerm = new ArrayList<SegmentReader>();
+                int count = 0;
+                while (!heads.isEmpty() && heads.peek().term.equals(term)) {
+                    SegmentReader reader = heads.poll();
+                    withTerm.add(reader);
+                    count += reader.postingCount;
+                }
+
+                out.writeUTF(term);
+                out.writeInt(count);
+                for (SegmentReader reader : withTerm) {    // in segment order, keeps postings sorted on document
+                    reader.copyPostings(out);
+                    reader.nextTerm();
+                    if (reader.term != null) heads.add(reader);
+                }
+            }
+            out.writeUTF("");
+
+        } finally {
+            for (SegmentReader reader : readers) {
+                reader.close();
+            }
+            out.close();
+        }
+
+        publish(temp);
+        for (File segment : segments) {
+            segment.delete();
+        }
+    }
+
+    // segment files become visible under their final name only when complete
+    private void publish(File temp) throws IOException {
+        File segment = new File(_indexDir, TextIndex.SEGMENT_PREFIX + System.currentTimeMillis() + "-"
+                + temp.getName().substring(TextIndex.SEGMENT_PREFIX.length(), temp.getName().length() - 4)
+                + TextIndex.SEGMENT_SUFFIX);
+        if (!temp.renameTo(segment)) {
+            throw new IOException("cannot rename " + temp + " to " + segment);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, int documentCount) throws IOException {
+        out.writeInt(TextIndex.MAGIC);
+        out.writeInt(TextIndex.VERSION);
+        out.writeInt(documentCount);
+    }
+
+    private static void writeDocument(DataOutputStream out, TextIndex.Hit document) throws IOException {
+        out.writeUTF(document.getPageID());
+        out.writeUTF(document.getSegmentID());
+        out.writeInt(document.getTextOffset());
+        out.writeInt(document.getX());
+        out.writeInt(document.getY());
+        out.writeInt(document.getW());
+        out.writeInt(document.getH());
+    }
+
+    private static int readDocumentCount(File segment) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(segment));
+        try {
+            TextIndex.readHeader(in, segment);
+            return in.readInt();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Sequential reader over one segment file during a merge.
+     */
+    private static class SegmentReader implements Comparable<SegmentReader> {
+
+        protected int documentCount;
+        protected String term;
+        protected int postingCount;
+
+        private DataInputStream _in;
+        private int _documentBase;
+        private long _order;
+
+        public SegmentReader(File segment, int documentBase) throws IOException {
+            _in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+            _documentBase = documentBase;
+            _order = documentBase;
+
+            TextIndex.readHeader(_in, segment);
+            documentCount = _in.readInt();
+        }
+
+        public TextIndex.Hit readDocument() throws IOException {
+            return TextIndex.readDocument(_in);
+        }
+
+        public void nextTerm() throws IOException {
+            term = _in.readUTF();
+            if (term.length() == 0) {
+                term = null;
+            } else {
+                postingCount = _in.readInt();
+            }
+        }
+
+        public void copyPostings(DataOutputStream out) throws IOException {
+            for (int i = 0; i < postingCount; i++) {
+                out.writeInt(_in.readInt() + _documentBase);
+                out.writeInt(_in.readInt());
+            }
+        }
+
+        public void close() throws IOException {
+            _in.close();
+        }
+
+        public int compareTo(SegmentReader r) {
+            int c = term.compareTo(r.term);
+            if (c != 0) return c;
+            return _order < r._order ? -1 : (_order > r._order ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+
+/**
+ * Write-only triple store for conversions that do not need queries. Terms
+ * are dictionary encoded: each distinct URI or literal is kept once and
+ * triples are stored as three term numbers in one int buffer. Iteration
+ * returns the triples grouped by subject, subjects in order of first
+ * appearance and triples of a subject in the order they were first added,
+ * so that a serializer can write each subject in one block. A triple that is
+ * added more than once is returned once, as from a repository.
+ *
+ * @author hennieb
+ */
+public class TripleBuffer implements Iterable<Statement> {
+
+    private static final int INITIAL_CAPACITY = 3 * 1024;
+
+    private ValueFactory f = new ValueFactoryImpl();
+
+    private Map<Value,Integer> _termNumbers = new HashMap<Value,Integer>();
+    private List<Value> _terms = new ArrayList<Value>();
+
+    private IntBuffer _triples = IntBuffer.allocate(INITIAL_CAPACITY);
+    private int _size = 0;
+
+    public void add(Resource subject, org.openrdf.model.URI predicate, Value object) {
+        if (_triples.remaining() < 3) grow();
+
+        _triples.put(getTermNumber(subject));
+        _triples.put(getTermNumber(predicate));
+        _triples.put(getTermNumber(object));
+        _size++;
+    }
+
+    /**
+     * @return number of triples added, repeated triples included
+     */
+    public int size() {
+        return _size;
+    }
+
+    public void clear() {
+        _termNumbers.clear();
+        _terms.clear();
+        _triples.clear();
+        _size = 0;
+    }
+
+    /**
+     * Reports all triples, grouped by subject, to handler as one document.
+     */
+    public void write(RDFHandler handler) throws RDFHandlerException {
+        handler.startRDF();
+        for (Statement st : this) {
+            handler.handleStatement(st);
+        }
+        handler.endRDF();
+    }
+
+    /**
+     * @return the distinct triples grouped by subject, see class comment
+     */
+    public Iterator<Statement> iterator() {
+        // subject number in the high, triple number in the low half; subject
+        // numbers follow first appearance, so this sort groups stably
+        final long[] order = new long[_size];
+        for (int i = 0; i < _size; i++) {
+            order[i] = ((long) _triples.get(3 * i) << 32) | i;
+        }
+        Arrays.sort(order);
+
+        // repeats of a triple are dropped within its subject group
+        int distinct = 0;
+        Set<Long> predicateObjects = new HashSet<Long>();
+        for (int i = 0; i < order.length; i++) {
+            if (i > 0 && (order[i] >>> 32) != (order[i - 1] >>> 32)) predicateObjects.clear();
+
+            int t = 3 * (int) order[i];
+            if (predicateObjects.add(((long) _triples.get(t + 1) << 32) | _triples.get(t + 2))) {
+                order[distinct++] = order[i];
+            }
+        }
+        final int count = distinct;
+
+        return new Iterator<Statement>() {
+            private int next = 0;
+
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            public Statement next() {
+                if (!hasNext()) throw new NoSuchElementException();
+
+                int t = 3 * (int) order[next++];
+                return f.createStatement((Resource) _terms.get(_triples.get(t)),
+                        (org.openrdf.model.URI) _terms.get(_triples.get(t + 1)),
+                        _terms.get(_triples.get(t + 2)));
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int getTermNumber(Value term) {
+        Integer number = _termNumbers.get(term);
+        if (number == null) {
+            number = _terms.size();
+            _terms.add(term);
+            _termNumbers.put(term, number);
+        }
+
+        return number;
+    }
+
+    private void grow() {
+        IntBuffer triples = IntBuffer.allocate(_triples.capacity() * 2);
+
+        _triples.flip();
+        triples.put(_triples);
+        _triples = triples;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class AnnotationIndexTest {
+
+    private static final int TEXT_LENGTH = 5000;
+
+    @Test
+    public void textRangeQueriesMatchBruteForce() throws Exception {
+        List<AnnotationIndex.Annotation> annotations = createAnnotations(new Random(1));
+        checkTextRanges(annotations, build(annotations), new Random(2));
+    }
+
+    @Test
+    public void textRangeQueriesMatchBruteForceAfterLoad() throws Exception {
+        List<AnnotationIndex.Annotation> annotations = createAnnotations(new Random(3));
+
+        File file = File.createTempFile("navis2oac-index", ".bin");
+        try {
+            build(annotations).write(file);
+            checkTextRanges(annotations, AnnotationIndex.load(file), new Random(4));
+        } finally {
+            file.delete();
+        }
+    }
+
+    // a long segment early on the canvas must still be found from far behind it
+    @Test
+    public void longSegmentIsFoundPastShortOnes() {
+        List<AnnotationIndex.Annotation> annotations = new ArrayList<AnnotationIndex.Annotation>();
+        annotations.add(line("long", "c", 0, 1000));
+        for (int i = 1; i < 100; i++) {
+            annotations.add(line("short" + i, "c", i * 10, 5));
+        }
+
+        List<String> ids = new ArrayList<String>();
+        for (AnnotationIndex.Annotation a : build(annotations).findByTextRange("c", 906, 908)) {
+            ids.add(a.getID());
+        }
+        assertEquals(Collections.singletonList("long"), ids);
+    }
+
+    @Test
+    public void lastSegmentWithAnIdIsFound() {
+        List<AnnotationIndex.Annotation> annotations = new ArrayList<AnnotationIndex.Annotation>();
+        annotations.add(line("w1", "c", 0, 5));
+        annotations.add(line("w1", "c", 10, 5));
+
+        AnnotationIndex.Annotation found = build(annotations).findById("w1");
+        assertEquals(10, found.getTextOffset());
+        assertNull(build(annotations).findById("w2"));
+    }
+
+    // brute force: every segment of the canvas that overlaps [from, to)
+    private static void checkTextRanges(List<AnnotationIndex.Annotation> annotations, AnnotationIndex index,
+            Random random) {
+        for (int query = 0; query < 2000; query++) {
+            String canvas = "canvas" + random.nextInt(3);
+            int from = random.nextInt(TEXT_LENGTH + 100) - 50;
+            int to = from + random.nextInt(query % 10 == 0 ? 1000 : 30);
+
+            List<String> expected = new ArrayList<String>();
+            for (AnnotationIndex.Annotation a : annotations) {
+                if (a.getCanvasID().equals(canvas) && a.getTextOffset() < to && a.getTextOffset() + a.getTextRange() > from) {
+                    expected.add(a.toString());
+                }
+            }
+
+            List<String> found = new ArrayList<String>();
+            int lastOffset = Integer.MIN_VALUE;
+            for (AnnotationIndex.Annotation a : index.findByTextRange(canvas, from, to)) {
+                found.add(a.toString());
+                if (a.getKind() != AnnotationIndex.KIND_PAGE) {
+                    assertTrue("text order", a.getTextOffset() >= lastOffset);
+                    lastOffset = a.getTextOffset();
+                }
+            }
+
+            Collections.sort(expected);
+            Collections.sort(found);
+            assertEquals(canvas + " [" + from + "," + to + ")", expected, found);
+        }
+    }
+
+    // per canvas a page over the whole text, lines with overlapping ranges and word zones within them
+    private static List<AnnotationIndex.Annotation> createAnnotations(Random random) {
+        List<AnnotationIndex.Annotation> annotations = new ArrayList<AnnotationIndex.Annotation>();
+
+        for (int c = 0; c < 3; c++) {
+            String canvas = "canvas" + c;
+            annotations.add(new AnnotationIndex.Annotation(AnnotationIndex.KIND_PAGE, canvas, null, canvas,
+                    0, TEXT_LENGTH, 0, 0, 1000, 1000));
+
+            for (int l = 0; l < 200; l++) {
+                String lineID = canvas + "-line" + l;
+                int offset = random.nextInt(TEXT_LENGTH);
+                int range = random.nextInt(l % 20 == 0 ? 2000 : 60);
+                annotations.add(new AnnotationIndex.Annotation(AnnotationIndex.KIND_LINE, lineID, lineID, canvas,
+                        offset, range, 0, l, 100, 1));
+
+                for (int w = 0; w < 3 && range > 0; w++) {
+                    int wordOffset = offset + random.nextInt(range);
+                    annotations.add(new AnnotationIndex.Annotation(AnnotationIndex.KIND_WORDZONE, lineID + "-w" + w, lineID,
+                            canvas, wordOffset, random.nextInt(10), w, l, 10, 1));
+                }
+            }
+        }
+
+        return annotations;
+    }
+
+    private static AnnotationIndex.Annotation line(String id, String canvas, int offset, int range) {
+        return new AnnotationIndex.Annotation(AnnotationIndex.KIND_LINE, id, id, canvas, offset, range, 0, 0, 1, 1);
+    }
+
+    private static AnnotationIndex build(List<AnnotationIndex.Annotation> annotations) {
+        AnnotationIndex.Builder builder = new AnnotationIndex.Builder();
+        for (AnnotationIndex.Annotation a : annotations) {
+            builder.add(a);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class BatchJournalTest {
+
+    private File _dir;
+    private File _journalFile;
+
+    @Before
+    public void createDir() throws Exception {
+        _dir = File.createTempFile("navis2oac-journal", "");
+        _dir.delete();
+        _dir.mkdirs();
+        _journalFile = new File(_dir, BatchJournal.FILE_NAME);
+    }
+
+    @After
+    public void removeDir() {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    @Test
+    public void resumesCompletedInputs() throws Exception {
+        BatchJournal journal = new BatchJournal(_journalFile);
+        journal.load();
+        journal.add("a.txt", output("a.rdf"), output("a.idx"));
+        journal.add("b.txt", output("b.rdf"));
+        journal.close();
+
+        BatchJournal resumed = new BatchJournal(_journalFile);
+        resumed.load();
+        assertTrue(resumed.isDone("a.txt"));
+        assertTrue(resumed.isDone("b.txt"));
+        assertFalse(resumed.isDone("c.txt"));
+        assertEquals(2, resumed.size());
+
+        // lines added after a resume are kept as well
+        resumed.add("c.txt", output("c.rdf"));
+        resumed.close();
+
+        BatchJournal again = new BatchJournal(_journalFile);
+        again.load();
+        assertEquals(3, again.size());
+    }
+
+    @Test
+    public void missingOutputIsConvertedAgain() throws Exception {
+        BatchJournal journal = new BatchJournal(_journalFile);
+        File idx = output("a.idx");
+        journal.add("a.txt", output("a.rdf"), idx);
+        journal.add("b.txt", output("b.rdf"));
+        journal.close();
+
+        assertTrue(idx.delete());
+
+        BatchJournal resumed = new BatchJournal(_journalFile);
+        resumed.load();
+        assertFalse(resumed.isDone("a.txt"));
+        assertTrue(resumed.isDone("b.txt"));
+    }
+
+    // a line without its newline was cut off by a crash: dropped, and the next line starts clean
+    @Test
+    public void cutOffLineIsRemoved() throws Exception {
+        BatchJournal journal = new BatchJournal(_journalFile);
+        journal.add("a.txt", output("a.rdf"));
+        journal.close();
+
+        FileOutputStream out = new FileOutputStream(_journalFile, true);
+        try {
+            out.write("b.txt\t".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+
+        BatchJournal resumed = new BatchJournal(_journalFile);
+        resumed.load();
+        assertTrue(resumed.isDone("a.txt"));
+        assertFalse(resumed.isDone("b.txt"));
+        resumed.add("c.txt", output("c.rdf"));
+        resumed.close();
+
+        BatchJournal again = new BatchJournal(_journalFile);
+        again.load();
+        assertTrue(again.isDone("a.txt"));
+        assertFalse(again.isDone("b.txt"));
+        assertTrue(again.isDone("c.txt"));
+    }
+
+    @Test
+    public void resetForgetsEarlierRuns() throws Exception {
+        BatchJournal journal = new BatchJournal(_journalFile);
+        journal.add("a.txt", output("a.rdf"));
+        journal.close();
+
+        BatchJournal restarted = new BatchJournal(_journalFile);
+        restarted.reset();
+        assertFalse(restarted.isDone("a.txt"));
+        assertFalse(_journalFile.exists());
+
+        restarted.load();
+        assertEquals(0, restarted.size());
+    }
+
+    private File output(String name) throws IOException {
+        File file = new File(_dir, name);
+        file.createNewFile();
+        return file;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.openrdf.rio.rdfxml.RDFXMLParser;
+import org.openrdf.rio.rdfxml.RDFXMLWriter;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class ParallelExporterTest {
+
+    private static final String NS = "http://example.org/";
+
+    private ValueFactory f = new ValueFactoryImpl();
+
+    // many blocks, a subject larger than a block, more blocks than may be pending
+    @Test
+    public void writesTheSameDocumentAsOneWriter() throws Exception {
+        List<Statement> statements = new ArrayList<Statement>();
+        Random random = new Random(28);
+        for (int s = 0; s < 3000; s++) {
+            int count = s == 1000 ? 10000 : 1 + random.nextInt(12);
+            addSubject(statements, s, count);
+        }
+
+        String expected = serialize(statements);
+        assertEquals(expected, export(statements, 4));
+        assertEquals(expected, export(statements, 1));
+        assertEquals(new HashSet<Statement>(statements), new HashSet<Statement>(parse(expected)));
+    }
+
+    @Test
+    public void writesAnEmptyDocument() throws Exception {
+        List<Statement> statements = new ArrayList<Statement>();
+        assertEquals(serialize(statements), export(statements, 2));
+    }
+
+    @Test
+    public void countsStatements() throws Exception {
+        List<Statement> statements = new ArrayList<Statement>();
+        addSubject(statements, 0, 5000);
+        addSubject(statements, 1, 3);
+
+        ParallelExporter exporter = new ParallelExporter(2, new StringWriter());
+        try {
+            for (Statement st : statements) {
+                exporter.add(st);
+            }
+            exporter.finish();
+        } finally {
+            exporter.close();
+        }
+        assertEquals(5003, exporter.getStatementCount());
+    }
+
+    private void addSubject(List<Statement> statements, int s, int count) {
+        Resource subject = f.createURI(NS + "s" + s);
+        for (int i = 0; i < count; i++) {
+            URI predicate = f.createURI(NS + "p" + (i % 7));
+            statements.add(f.createStatement(subject, predicate, (i % 2 == 0)
+                    ? f.createLiteral("value <" + i + "> & \"" + s + "\"")
+                    : f.createURI(NS + "o" + i)));
+        }
+    }
+
+    private static String export(List<Statement> statements, int threads) throws Exception {
+        StringWriter out = new StringWriter();
+        ParallelExporter exporter = new ParallelExporter(threads, out);
+        try {
+            for (Statement st : statements) {
+                exporter.add(st);
+            }
+            exporter.finish();
+        } finally {
+            exporter.close();
+        }
+        return out.toString();
+    }
+
+    private static String serialize(List<Statement> statements) throws Exception {
+        StringWriter out = new StringWriter();
+        RDFXMLWriter writer = new RDFXMLWriter(out);
+        writer.startRDF();
+        for (Statement st : statements) {
+            writer.handleStatement(st);
+        }
+        writer.endRDF();
+        return out.toString();
+    }
+
+    private static List<Statement> parse(String document) throws Exception {
+        RDFXMLParser parser = new RDFXMLParser();
+        List<Statement> statements = new ArrayList<Statement>();
+        parser.setRDFHandler(new StatementCollector(statements));
+        parser.parse(new StringReader(document), NS);
+        return statements;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class RecordSpoolTest {
+
+    @Test
+    public void readsInKeyOrderWithoutSpilling() throws Exception {
+        checkOrder(1000, 1024L * 1024 * 1024, 0);
+    }
+
+    @Test
+    public void readsInKeyOrderAcrossSpilledRuns() throws Exception {
+        checkOrder(2000, 20000, 2);
+    }
+
+    // more runs than one merge reads at a time, so they are merged in passes first
+    @Test
+    public void readsInKeyOrderAboveMergeFanIn() throws Exception {
+        checkOrder(20000, 20000, 17);
+    }
+
+    @Test
+    public void closeRemovesRuns() throws Exception {
+        RecordSpool spool = new RecordSpool(1000);
+        for (int i = 0; i < 1000; i++) {
+            spool.add(i % 7, record(i));
+        }
+        assertTrue(spool.getRunCount() > 0);
+
+        spool.close();
+        assertEquals(0, spool.getRunCount());
+    }
+
+    // records have random keys; within one key they must come back in the order they were added
+    private static void checkOrder(int count, long maxBytes, int minRuns) throws Exception {
+        RecordSpool spool = new RecordSpool(maxBytes);
+        try {
+            Random random = new Random(count);
+            for (int i = 0; i < count; i++) {
+                spool.add(random.nextInt(500), record(i));
+            }
+            assertTrue("runs " + spool.getRunCount(), spool.getRunCount() >= minRuns);
+
+            // the same keys again, to know what to expect
+            random = new Random(count);
+            int[] keys = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = random.nextInt(500);
+            }
+
+            RecordSpool.Reader records = spool.open();
+            int read = 0;
+            int lastKey = -1;
+            int lastSequence = -1;
+            Map<String,String> record = records.next();
+            while (record != null) {
+                int sequence = Integer.parseInt(record.get("sequence"));
+                int key = keys[sequence];
+
+                assertTrue("key " + key + " after " + lastKey, key >= lastKey);
+                if (key == lastKey) assertTrue("sequence " + sequence + " after " + lastSequence, sequence > lastSequence);
+                assertEquals("text of " + sequence, record.get("text"));
+
+                lastKey = key;
+                lastSequence = sequence;
+                read++;
+                record = records.next();
+            }
+            assertEquals(count, read);
+
+        } finally {
+            spool.close();
+        }
+    }
+
+    private static Map<String,String> record(int sequence) {
+        Map<String,String> record = new HashMap<String,String>();
+        record.put("sequence", Integer.toString(sequence));
+        record.put("text", "text of " + sequence);
+        return record;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.openrdf.rio.rdfxml.RDFXMLParser;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class ScanConverterTest {
+
+    private static final String SCANS = "http://example.org/scans/";
+
+    private File _inputDir;
+    private File _outputDir;
+
+    @Before
+    public void createDirs() throws Exception {
+        _inputDir = createTempDir("navis2oac-cutouts");
+        _outputDir = createTempDir("navis2oac-scans");
+    }
+
+    @After
+    public void removeDirs() {
+        removeDir(_inputDir);
+        removeDir(_outputDir);
+    }
+
+    // blocks of the scans are interleaved in the input; each scan gets one file with all its blocks
+    @Test
+    public void mergesBlocksPerScan() throws Exception {
+        int[] blocks = {3, 1, 4};
+        for (int block = 0; block < 4; block++) {
+            for (int scan = 0; scan < blocks.length; scan++) {
+                if (block < blocks[scan]) writeCutout(scan, block, block + 2);
+            }
+        }
+
+        newConverter(4).convert(_inputDir, _outputDir);
+
+        String[] outputs = _outputDir.list();
+        Arrays.sort(outputs);
+        assertEquals(Arrays.asList("S0.rdf", "S1.rdf", "S2.rdf"), Arrays.asList(outputs));
+
+        for (int scan = 0; scan < blocks.length; scan++) {
+            checkScan(scan, blocks[scan]);
+        }
+    }
+
+    @Test
+    public void scansOfAZipArchive() throws Exception {
+        writeCutout(0, 0, 2);
+        writeCutout(0, 1, 3);
+        File archive = new File(_outputDir.getParentFile(), _outputDir.getName() + ".zip");
+        zip(archive);
+        try {
+            newConverter(2).convert(archive, _outputDir);
+        } finally {
+            archive.delete();
+        }
+
+        assertEquals(Arrays.asList("S0.rdf"), Arrays.asList(_outputDir.list()));
+        checkScan(0, 2);
+    }
+
+    @Test
+    public void unreadableCutoutFailsOnlyItself() throws Exception {
+        writeCutout(0, 0, 2);
+        writeCutout(1, 0, 2);
+        write(new File(_inputDir, "broken.xml"), "<?xml version=\"1.0\"?>\n<result><start_process_cutout></start_process_cutout></result>\n");
+
+        try {
+            newConverter(2).convert(_inputDir, _outputDir);
+            fail("unreadable cutout not reported");
+        } catch (ConversionException ex) {
+            assertTrue(ex.getMessage(), ex.getMessage().contains("1 cutouts could not be read"));
+        }
+
+        String[] outputs = _outputDir.list();
+        Arrays.sort(outputs);
+        assertEquals(Arrays.asList("S0.rdf", "S1.rdf"), Arrays.asList(outputs));
+    }
+
+    // one canvas and image annotation; every block region is on the canvas and has its line strips
+    private void checkScan(int scan, int blocks) throws Exception {
+        List<Statement> statements = parse(new File(_outputDir, "S" + scan + ".rdf"));
+
+        Set<String> canvases = subjectsOfType(statements, SesameStore.SC_CANVAS.toString());
+        assertEquals(1, canvases.size());
+        String canvas = canvases.iterator().next();
+
+        Set<String> regions = subjectsOfType(statements, SesameStore.CP_LINESTRIPREGION.toString());
+        assertEquals(blocks, regions.size());
+
+        int imageAnnotations = 0;
+        Set<String> regionTargets = new HashSet<String>();
+        Set<String> lineStrips = new HashSet<String>();
+        for (Statement st : statements) {
+            String predicate = st.getPredicate().stringValue();
+            String object = st.getObject().stringValue();
+
+            if (predicate.equals(SesameStore.OA_HASBODY.toString()) && object.equals(pageImage(scan))) {
+                imageAnnotations++;
+            } else if (predicate.equals(SesameStore.OA_HASTARGET.toString())
+                    && regions.contains(st.getSubject().stringValue())) {
+                regionTargets.add(object);
+            } else if (predicate.equals(SesameStore.DC_IDENTIFIER.toString())) {
+                lineStrips.add(object);
+            }
+        }
+        assertEquals(1, imageAnnotations);
+
+        Set<String> sources = new HashSet<String>();
+        for (Statement st : statements) {
+            if (st.getPredicate().stringValue().equals(SesameStore.OA_HASSOURCE.toString())
+                    && regionTargets.contains(st.getSubject().stringValue())) {
+                sources.add(st.getObject().stringValue());
+            }
+        }
+        assertEquals(blocks, regionTargets.size());
+        assertEquals(Arrays.asList(canvas), new ArrayList<String>(sources));
+
+        Set<String> expectedLineStrips = new HashSet<String>();
+        for (int block = 0; block < blocks; block++) {
+            for (int line = 1; line <= block + 2; line++) {
+                expectedLineStrips.add(pageImage(scan) + "/" + x(block) + "-" + y(block) + "/" + line);
+            }
+        }
+        assertEquals(expectedLineStrips, lineStrips);
+    }
+
+    private static ScanConverter newConverter(int threads) {
+        return new ScanConverter(new ConversionOptions.Builder().setLineStrips(true).setThreads(threads).build());
+    }
+
+    private void writeCutout(int scan, int block, int lines) throws IOException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>\n<result><start_process_cutout>");
+        xml.append("<page_image_original>").append(pageImage(scan)).append("</page_image_original>");
+        xml.append("<page_image_cutout>").append(SCANS).append("S").append(scan).append("-block").append(block)
+                .append(".jpg</page_image_cutout>");
+        xml.append("<width>400</width><height>").append(lines * 50).append("</height><angle>-2</angle>");
+        xml.append("<x1>").append(x(block)).append("</x1><y1>").append(y(block)).append("</y1>");
+        xml.append("<x2>").append(x(block) + 400).append("</x2><y2>").append(y(block) + lines * 50).append("</y2>");
+        xml.append("<status>ok</status>\n<linestrips>");
+        for (int line = 1; line <= lines; line++) {
+            xml.append("<linestrip><line_image>").append(SCANS).append("S").append(scan).append("-block").append(block)
+                    .append("-line").append(line).append(".jpg</line_image><id>").append(line).append("</id>");
+            xml.append("<y1>").append((line - 1) * 50).append("</y1><y2>").append((line - 1) * 50 + 40).append("</y2></linestrip>");
+        }
+        xml.append("</linestrips></start_process_cutout></result>\n");
+
+        write(new File(_inputDir, "S" + scan + "-block" + block + ".xml"), xml.toString());
+    }
+
+    private static String pageImage(int scan) {
+        return SCANS + "S" + scan + ".jpg";
+    }
+
+    private static int x(int block) {
+        return 100 + 10 * block;
+    }
+
+    private static int y(int block) {
+        return 100 + 500 * block;
+    }
+
+    private void zip(File archive) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive));
+        try {
+            for (File file : _inputDir.listFiles()) {
+                out.putNextEntry(new ZipEntry(file.getName()));
+                InputStream in = new FileInputStream(file);
+                try {
+                    byte[] buffer = new byte[4096];
+                    for (int n = in.read(buffer); n > 0; n = in.read(buffer)) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<Statement> parse(File file) throws Exception {
+        RDFXMLParser parser = new RDFXMLParser();
+        List<Statement> statements = new ArrayList<Statement>();
+        parser.setRDFHandler(new StatementCollector(statements));
+        InputStream in = new FileInputStream(file);
+        try {
+            parser.parse(in, SesameStore.CATCHPLUS);
+        } finally {
+            in.close();
+        }
+        return statements;
+    }
+
+    private static Set<String> subjectsOfType(List<Statement> statements, String type) {
+        Set<String> subjects = new HashSet<String>();
+        for (Statement st : statements) {
+            if (st.getPredicate().stringValue().equals(SesameStore.RDF_TYPE.toString())
+                    && st.getObject().stringValue().equals(type)) {
+                subjects.add(st.getSubject().stringValue());
+            }
+        }
+        return subjects;
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static void removeDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
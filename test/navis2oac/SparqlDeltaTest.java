@@ -0,0 +1,224 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.helpers.StatementCollector;
+import org.openrdf.rio.rdfxml.RDFXMLParser;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class SparqlDeltaTest {
+
+    private static final String LINE_1 =
+            "<txt>Dit is de eerste regel</txt><id>navis-P1-line-001-y1=100-y2=140</id><user>jan</user><time>2012-01-01</time>\n"
+            + "<txt>Dit</txt><id>navis-P1-line-001-y1=100-y2=140-zone-1-x=10-y=2-w=30-h=35</id><user>jan</user><time>2012-01-01</time>\n";
+    private static final String LINE_2 =
+            "<txt>tweede</txt><id>navis-P1-line-2-y1=150-y2=190-zone-1-x=12-y=1-w=50-h=36</id><user>piet</user><time>2012-01-02</time>\n";
+    private static final String LINE_2_CHANGED =
+            "<txt>derde</txt><id>navis-P1-line-2-y1=150-y2=190-zone-1-x=12-y=1-w=50-h=36</id><user>piet</user><time>2012-01-02</time>\n";
+    private static final String LINE_3 =
+            "<txt>vierde</txt><id>navis-P1-line-3-y1=200-y2=240-zone-1-x=14-y=1-w=50-h=36</id><user>piet</user><time>2012-01-03</time>\n";
+
+    private static final Pattern DELETED_NODE = Pattern.compile(" <([^>]+)>");
+    private static final Pattern INSERTED_SUBJECT = Pattern.compile("^<([^>]+)> ", Pattern.MULTILINE);
+
+    private File _dir;
+    private Converter _converter;
+
+    @Before
+    public void createDir() throws Exception {
+        _dir = File.createTempFile("navis2oac-delta", "");
+        _dir.delete();
+        _dir.mkdirs();
+
+        _converter = new Converter(new ConversionOptions.Builder()
+                .setSnapshotFile(new File(_dir, "P1.snapshot"))
+                .setDeltaFile(new File(_dir, "P1.delta"))
+                .build());
+    }
+
+    @After
+    public void removeDir() {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    @Test
+    public void firstConversionInsertsEverything() throws Exception {
+        List<Statement> page = convert(LINE_1 + LINE_2);
+        String delta = read(new File(_dir, "P1.delta"));
+
+        assertFalse(delta, delta.contains("DELETE"));
+        assertEquals(subjects(page), insertedSubjects(delta));
+        assertEquals(page.size(), insertedLines(delta));
+    }
+
+    @Test
+    public void unchangedPageGivesEmptyDelta() throws Exception {
+        convert(LINE_1 + LINE_2);
+        convert(LINE_1 + LINE_2);
+
+        assertEquals("\n", read(new File(_dir, "P1.delta")));
+    }
+
+    // the page text changes with any word, the annotations of other words must not
+    @Test
+    public void changedAnnotationIsReplaced() throws Exception {
+        List<Statement> before = convert(LINE_1 + LINE_2);
+        List<Statement> after = convert(LINE_1 + LINE_2_CHANGED);
+        String delta = read(new File(_dir, "P1.delta"));
+
+        assertTrue(delta, delta.contains("\"derde\""));
+        assertFalse(delta, delta.contains("\"navis-P1-line-001-y1=100-y2=140-zone-1"));
+        checkDelta(before, after, delta);
+    }
+
+    @Test
+    public void addedAnnotationIsInserted() throws Exception {
+        List<Statement> before = convert(LINE_1 + LINE_2);
+        List<Statement> after = convert(LINE_1 + LINE_2 + LINE_3);
+        String delta = read(new File(_dir, "P1.delta"));
+
+        assertTrue(delta, delta.contains("\"vierde\""));
+        assertFalse(delta, delta.contains("\"navis-P1-line-2-y1=150-y2=190-zone-1"));
+        checkDelta(before, after, delta);
+    }
+
+    @Test
+    public void removedAnnotationIsDeleted() throws Exception {
+        List<Statement> before = convert(LINE_1 + LINE_2 + LINE_3);
+        List<Statement> after = convert(LINE_1 + LINE_2);
+        String delta = read(new File(_dir, "P1.delta"));
+
+        assertTrue(delta, delta.contains("DELETE"));
+        assertFalse(delta, delta.contains("vierde"));
+        checkDelta(before, after, delta);
+    }
+
+    // applied to the graph before, the delta must give the graph after
+    private static void checkDelta(List<Statement> before, List<Statement> after, String delta) {
+        Set<String> deleted = deletedNodes(delta);
+        Set<String> inserted = insertedSubjects(delta);
+
+        Set<Statement> applied = new HashSet<Statement>();
+        for (Statement st : before) {
+            if (!deleted.contains(st.getSubject().stringValue())) applied.add(st);
+        }
+        int insertedCount = 0;
+        for (Statement st : after) {
+            if (inserted.contains(st.getSubject().stringValue())) {
+                applied.add(st);
+                insertedCount++;
+            }
+        }
+
+        assertFalse(delta, deleted.isEmpty());
+        assertEquals(insertedCount, insertedLines(delta));
+        assertEquals(new HashSet<Statement>(after), applied);
+    }
+
+    private List<Statement> convert(String page) throws Exception {
+        File input = new File(_dir, "P1.txt");
+        write(input, page);
+
+        File output = new File(_dir, "P1.rdf");
+        _converter.convert(InputSource.fromFile(input), RDFSink.toFile(output));
+
+        RDFParser parser = new RDFXMLParser();
+        List<Statement> statements = new ArrayList<Statement>();
+        parser.setRDFHandler(new StatementCollector(statements));
+        InputStream in = new FileInputStream(output);
+        try {
+            parser.parse(in, SesameStore.CATCHPLUS);
+        } finally {
+            in.close();
+        }
+        return statements;
+    }
+
+    private static Set<String> subjects(List<Statement> statements) {
+        Set<String> subjects = new HashSet<String>();
+        for (Statement st : statements) {
+            subjects.add(st.getSubject().stringValue());
+        }
+        return subjects;
+    }
+
+    private static Set<String> deletedNodes(String delta) {
+        Set<String> nodes = new HashSet<String>();
+        int values = delta.indexOf("VALUES ?s {");
+        if (values < 0) return nodes;
+
+        Matcher m = DELETED_NODE.matcher(delta.substring(values, delta.indexOf('}', values)));
+        while (m.find()) {
+            nodes.add(m.group(1));
+        }
+        return nodes;
+    }
+
+    private static Set<String> insertedSubjects(String delta) {
+        Set<String> subjects = new HashSet<String>();
+        Matcher m = INSERTED_SUBJECT.matcher(delta);
+        while (m.find()) {
+            subjects.add(m.group(1));
+        }
+        return subjects;
+    }
+
+    private static int insertedLines(String delta) {
+        int count = 0;
+        Matcher m = INSERTED_SUBJECT.matcher(delta);
+        while (m.find()) {
+            count++;
+        }
+        return count;
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(text);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+            return new String(bytes, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class TextIndexTest {
+
+    private static final int PAGES = 50;
+    private static final int SEGMENTS_PER_PAGE = 4;
+
+    private File _indexDir;
+
+    @Before
+    public void createIndexDir() throws Exception {
+        _indexDir = File.createTempFile("navis2oac-textindex", "");
+        _indexDir.delete();
+        _indexDir.mkdirs();
+    }
+
+    @After
+    public void removeIndexDir() {
+        for (File f : _indexDir.listFiles()) {
+            f.delete();
+        }
+        _indexDir.delete();
+    }
+
+    // one segment file per page, merged as the tiers fill up; every hit is still found, once
+    @Test
+    public void findsAllHitsAfterMerges() throws Exception {
+        List<String> expectedCommon = new ArrayList<String>();
+        List<String> expectedPage7 = new ArrayList<String>();
+
+        for (int page = 0; page < PAGES; page++) {
+            TextIndexWriter writer = new TextIndexWriter(_indexDir);
+            String pageID = "page" + page;
+
+            int offset = 0;
+            for (int s = 0; s < SEGMENTS_PER_PAGE; s++) {
+                String segmentID = pageID + "-s" + s;
+                String text = "Common word" + page + ", the";
+                writer.addSegment(pageID, segmentID, text, offset, s, page, 100, 10);
+
+                expectedCommon.add(new TextIndex.Hit(pageID, segmentID, offset, s, page, 100, 10).toString());
+                if (page == 7) {
+                    expectedPage7.add(new TextIndex.Hit(pageID, segmentID, offset + 7, s, page, 100, 10).toString());
+                }
+                offset += text.length() + 1;
+            }
+            writer.flush();
+        }
+
+        int segmentFiles = TextIndex.listSegments(_indexDir).length;
+        assertTrue("segment files " + segmentFiles, segmentFiles < PAGES / 4);
+
+        Collections.sort(expectedCommon);
+        Collections.sort(expectedPage7);
+
+        TextIndex index = new TextIndex(_indexDir);
+        assertEquals(expectedCommon, sorted(index.search("COMMON")));
+        assertEquals(expectedPage7, sorted(index.search("word7")));
+        assertEquals(PAGES * SEGMENTS_PER_PAGE, index.search("the").size());
+        assertTrue(index.search("word" + PAGES).isEmpty());
+    }
+
+    @Test
+    public void segmentsWithoutOffsetHaveNoCharOffset() throws Exception {
+        TextIndexWriter writer = new TextIndexWriter(_indexDir);
+        writer.addSegment("p", "s", "alpha beta", -1, 0, 0, 1, 1);
+        writer.flush();
+
+        List<TextIndex.Hit> hits = new TextIndex(_indexDir).search("beta");
+        assertEquals(1, hits.size());
+        assertEquals(-1, hits.get(0).getTextOffset());
+    }
+
+    private static List<String> sorted(List<TextIndex.Hit> hits) {
+        List<String> result = new ArrayList<String>();
+        for (TextIndex.Hit hit : hits) {
+            result.add(hit.toString());
+        }
+        Collections.sort(result);
+        return result;
+    }
+}
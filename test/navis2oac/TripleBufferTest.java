@@ -0,0 +1,105 @@
+/*
+ * navis2oac - Simple converter from navis formatted files to Open Annotation
+ * RDF/XML format. Complies to OAC phase II beta spec.
+ */
+
+package navis2oac;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import org.junit.Test;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.ValueFactory;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import static org.junit.Assert.*;
+
+/**
+ * @author hennieb
+ */
+public class TripleBufferTest {
+
+    private static final String NS = "http://example.org/";
+
+    private ValueFactory f = new ValueFactoryImpl();
+
+    // subjects in order of first appearance, their triples in order of first addition, no repeats
+    @Test
+    public void groupsBySubjectAndDropsRepeats() throws Exception {
+        TripleBuffer buffer = new TripleBuffer();
+        Map<Resource,Set<Statement>> expected = new LinkedHashMap<Resource,Set<Statement>>();
+
+        Random random = new Random(31);
+        int added = 0;
+        for (int i = 0; i < 5000; i++) {
+            Resource subject = f.createURI(NS + "s" + random.nextInt(200));
+            URI predicate = f.createURI(NS + "p" + random.nextInt(5));
+            Value object = random.nextBoolean()
+                    ? f.createURI(NS + "o" + random.nextInt(10))
+                    : f.createLiteral("o" + random.nextInt(10));
+
+            buffer.add(subject, predicate, object);
+            added++;
+
+            if (!expected.containsKey(subject)) {
+                expected.put(subject, new LinkedHashSet<Statement>());
+            }
+            expected.get(subject).add(f.createStatement(subject, predicate, object));
+        }
+
+        assertEquals(added, buffer.size());
+        assertEquals(flatten(expected), list(buffer));
+    }
+
+    @Test
+    public void uriAndLiteralObjectsDiffer() throws Exception {
+        TripleBuffer buffer = new TripleBuffer();
+        URI subject = f.createURI(NS + "s");
+        URI predicate = f.createURI(NS + "p");
+
+        buffer.add(subject, predicate, f.createURI(NS + "o"));
+        buffer.add(subject, predicate, f.createLiteral(NS + "o"));
+        buffer.add(subject, predicate, f.createURI(NS + "o"));
+
+        assertEquals(3, buffer.size());
+        assertEquals(2, list(buffer).size());
+    }
+
+    @Test
+    public void clearEmptiesTheBuffer() throws Exception {
+        TripleBuffer buffer = new TripleBuffer();
+        URI subject = f.createURI(NS + "s");
+        buffer.add(subject, f.createURI(NS + "p"), f.createLiteral("a"));
+        buffer.clear();
+
+        assertEquals(0, buffer.size());
+        assertFalse(buffer.iterator().hasNext());
+
+        buffer.add(subject, f.createURI(NS + "q"), f.createLiteral("b"));
+        assertEquals(1, list(buffer).size());
+        assertEquals(f.createURI(NS + "q"), list(buffer).get(0).getPredicate());
+    }
+
+    private static List<Statement> flatten(Map<Resource,Set<Statement>> statements) {
+        List<Statement> result = new ArrayList<Statement>();
+        for (Set<Statement> subjectStatements : statements.values()) {
+            result.addAll(subjectStatements);
+        }
+        return result;
+    }
+
+    private static List<Statement> list(TripleBuffer buffer) {
+        List<Statement> result = new ArrayList<Statement>();
+        for (Statement st : buffer) {
+            result.add(st);
+        }
+        return result;
+    }
+}